@@ -4,20 +4,20 @@ import java.io.IOException;
 import java.net.URI;
 //import java.util.Collection;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
+import es.museotrapo.trapo.service.ArtistDeletionService;
 import es.museotrapo.trapo.service.ArtistService;
 import es.museotrapo.trapo.dto.ArtistDTO;
-
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import es.museotrapo.trapo.dto.ArtistDeletionDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -38,16 +38,21 @@ public class ArtistControllerREST {
     @Autowired
     private ArtistService artistService;
 
-    Pageable defaultPage = PageRequest.of(0, 2); // Default pagination settings (page 0, size 10)
+    // Injecting the ArtistDeletionService to delete artists in the background
+    @Autowired
+    private ArtistDeletionService artistDeletionService;
+
     /**
-     * Endpoint to retrieve all artists with pagination support.
+     * Endpoint to retrieve all artists, one page at a time.
      *
-     * @param pageable the pagination information (page number, size, sorting).
-     * @return a page of ArtistDTOs.
+     * @param cursor the continuation token returned with the previous page, absent for the first page.
+     * @param size   the number of artists per page, at most 100.
+     * @return a CursorPage of ArtistDTOs, with the token of the next page.
      */
     @GetMapping("")
-    public Page<ArtistDTO> getArtists(Pageable pageable) {
-        return artistService.getArtists(pageable); // Retrieve artists with pagination
+    public CursorPage<ArtistDTO> getArtists(@RequestParam(required = false) String cursor,
+                                            @RequestParam(defaultValue = "10") int size) {
+        return artistService.getArtists(cursor, size); // Retrieve a page of artists
     }
 
     /**
@@ -80,14 +85,28 @@ public class ArtistControllerREST {
     }
 
     /**
-     * Endpoint to delete a specific artist by its ID.
+     * Endpoint to delete a specific artist by its ID, together with all its pictures.
+     * The deletion runs in the background: its progress can be followed at the returned location.
      *
      * @param id the ID of the artist to delete.
-     * @return the ArtistDTO of the deleted artist.
+     * @return 202 Accepted with the progress of the deletion.
      */
     @DeleteMapping("/{id}")
-    public ArtistDTO deleteArtist(@PathVariable long id) {
-        return artistService.deleteArtist(id); // Delete the artist and return the deleted ArtistDTO
+    public ResponseEntity<ArtistDeletionDTO> deleteArtist(@PathVariable long id) {
+        ArtistDeletionDTO deletion = artistDeletionService.startDeletion(id); // Start deleting the artist
+        URI location = fromCurrentRequest().path("/deletion").build().toUri();
+        return ResponseEntity.accepted().location(location).body(deletion);
+    }
+
+    /**
+     * Endpoint to follow the deletion of an artist.
+     *
+     * @param id the ID of the artist being deleted.
+     * @return the progress of the deletion, with the number of pictures already deleted.
+     */
+    @GetMapping("/{id}/deletion")
+    public ArtistDeletionDTO getArtistDeletion(@PathVariable long id) {
+        return artistDeletionService.getDeletion(id);
     }
 
     /**
@@ -105,13 +124,14 @@ public class ArtistControllerREST {
     /**
      * Endpoint to retrieve the biography of a specific artist by its ID.
      *
-     * @param id the ID of the artist.
-     * @return ResponseEntity with the biography file as a Resource.
+     * @param id       the ID of the artist.
+     * @param request  the HTTP request.
+     * @param response the HTTP response the biography file is written to.
      */
     @GetMapping("/{id}/biography")
-    public ResponseEntity<Resource> getBiography(@PathVariable long id) {
+    public void getBiography(@PathVariable long id, HttpServletRequest request, HttpServletResponse response) {
         try{
-            return artistService.getBiographyResponse(id);
+            artistService.writeBiography(id, request, response);
         } catch (IOException e){
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File was not found.", e);
         } // Retrieve the biography of the artist by ID
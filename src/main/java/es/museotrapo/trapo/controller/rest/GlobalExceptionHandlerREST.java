@@ -1,6 +1,7 @@
 package es.museotrapo.trapo.controller.rest;
 
 import es.museotrapo.trapo.exceptions.UnauthorizedCommentDeleteException;
+import es.museotrapo.trapo.exceptions.UploadOffsetMismatchException;
 import es.museotrapo.trapo.exceptions.UserAlreadyExistsException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -30,4 +31,13 @@ public class GlobalExceptionHandlerREST {
                 .body(Map.of("error", ex.getMessage()));
     }
 
+    /*
+     * Manage the exception UploadOffsetMismatchException, telling the client where to resume
+     */
+    @ExceptionHandler(UploadOffsetMismatchException.class)
+    public ResponseEntity<?> handleUploadOffsetMismatchException(UploadOffsetMismatchException ex) {
+        return ResponseEntity.status(HttpStatus.CONFLICT) // 409 Conflict
+                .body(Map.of("error", ex.getMessage(), "offset", ex.getOffset()));
+    }
+
 }
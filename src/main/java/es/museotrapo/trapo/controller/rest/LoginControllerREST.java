@@ -1,11 +1,15 @@
 package es.museotrapo.trapo.controller.rest;
 
+import es.museotrapo.trapo.exceptions.PasswordCheckOverloadedException;
 import es.museotrapo.trapo.security.LoginAttemptService;
 import es.museotrapo.trapo.security.jwt.AuthResponse;
 import es.museotrapo.trapo.security.jwt.LoginRequest;
 import es.museotrapo.trapo.security.jwt.UserLogingService;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import es.museotrapo.trapo.dto.UserDTO;
@@ -27,15 +31,20 @@ public class LoginControllerREST {
      * Endpoint for user login.
      * It handles the authentication process and returns an AuthResponse.
      *
+     * Logins are refused after too many failures of the same user from the same client,
+     * or of any user from the same client, and while too many passwords are being checked.
+     *
      * @param loginRequest the login request containing username and password.
+     * @param request      the HTTP request, identifying the client.
      * @param response     the HTTP response to set cookies.
      * @return AuthResponse indicating success or failure of the login attempt.
      */
     @PostMapping("/login")
-    public ResponseEntity<AuthResponse> login(@RequestBody LoginRequest loginRequest, HttpServletResponse response) {
-        // Validar si el usuario está bloqueado
-
-        if (loginAttemptService.isBlocked()) {
+    public ResponseEntity<AuthResponse> login(@RequestBody LoginRequest loginRequest, HttpServletRequest request,
+                                              HttpServletResponse response) {
+        String clientIp = request.getRemoteAddr();
+        // Validar si el usuario está bloqueado, reservando el intento antes de comprobar la contraseña
+        if (!loginAttemptService.tryAttempt(loginRequest.getUsername(), clientIp)) {
             return ResponseEntity.status(429).body(
                     new AuthResponse(AuthResponse.Status.FAILURE, "Demasiados intentos fallidos. Usuario bloqueado temporalmente.")
             );
@@ -43,12 +52,17 @@ public class LoginControllerREST {
         try {
             // Realizar la autenticación
             ResponseEntity<AuthResponse> authResponse = userLogingService.login(response, loginRequest);
-            loginAttemptService.resetAttempts();
+            loginAttemptService.registerLoginSuccess(loginRequest.getUsername(), clientIp);
             return authResponse;
 
+        } catch (PasswordCheckOverloadedException e) {
+            // The password was not checked, so it does not count as a failed attempt
+            loginAttemptService.cancelAttempt(loginRequest.getUsername(), clientIp);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body(
+                    new AuthResponse(AuthResponse.Status.FAILURE, "Demasiados inicios de sesión en curso. Inténtalo de nuevo.")
+            );
         } catch (Exception e) {
-            // Incrementar intentos fallidos si la autenticación falla
-            loginAttemptService.registerLoginFailure();
+            // El intento reservado queda contado como fallido
             return ResponseEntity.status(401).body(
                     new AuthResponse(AuthResponse.Status.FAILURE, "Credenciales inválidas.")
             );
@@ -72,12 +86,13 @@ public class LoginControllerREST {
      * Endpoint to log out the user.
      * It invalidates the refresh token and clears the cookies.
      *
+     * @param request  the HTTP request holding the token cookies.
      * @param response the HTTP response to set cookies.
      * @return AuthResponse indicating success or failure of the logout attempt.
      */
     @PostMapping("/logout")
-    public ResponseEntity<AuthResponse> logOut(HttpServletResponse response) {
-        return ResponseEntity.ok(new AuthResponse(AuthResponse.Status.SUCCESS, userLogingService.logout(response)));
+    public ResponseEntity<AuthResponse> logOut(HttpServletRequest request, HttpServletResponse response) {
+        return ResponseEntity.ok(new AuthResponse(AuthResponse.Status.SUCCESS, userLogingService.logout(request, response)));
     }
 
     /**
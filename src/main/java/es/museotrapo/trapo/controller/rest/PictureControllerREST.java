@@ -1,23 +1,31 @@
 package es.museotrapo.trapo.controller.rest;
 
 import es.museotrapo.trapo.dto.CommentDTO;
+import es.museotrapo.trapo.dto.CommentSimpleDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.dto.PictureListingDTO;
+import es.museotrapo.trapo.dto.UploadSessionDTO;
 import es.museotrapo.trapo.service.PictureService;
+import es.museotrapo.trapo.service.UploadService;
 import es.museotrapo.trapo.service.UserService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import static org.springframework.web.servlet.support.ServletUriComponentsBuilder.fromCurrentContextPath;
 import static org.springframework.web.servlet.support.ServletUriComponentsBuilder.fromCurrentRequest;
 
 import java.io.IOException;
 import java.net.URI;
 import java.sql.SQLException;
-import java.util.Collection;
 
 @RestController
 @RequestMapping("/api/pictures")
@@ -28,15 +36,32 @@ public class PictureControllerREST {
     private PictureService pictureService;
     @Autowired
     private UserService userService;
+    @Autowired
+    private UploadService uploadService;
+
+    /**
+     * Endpoint to retrieve the listing of pictures, one page at a time.
+     *
+     * @param cursor the continuation token returned with the previous page, absent for the first page.
+     * @param size   the number of pictures per page, at most 100.
+     * @return a CursorPage of PictureListingDTOs, with the token of the next page.
+     */
+    @GetMapping(value = "", produces = MediaType.APPLICATION_JSON_VALUE)
+    public CursorPage<PictureListingDTO> getPictures(@RequestParam(required = false) String cursor,
+                                                    @RequestParam(defaultValue = "10") int size) {
+        return pictureService.getPictures(cursor, size); // Retrieve a page of pictures
+    }
 
     /**
-     * Endpoint to retrieve all pictures.
+     * Endpoint to export the listing of every picture as newline-delimited JSON, selected with
+     * "Accept: application/x-ndjson". The listing is streamed from the database while it is written.
      *
-     * @return a collection of PictureDTOs.
+     * @return a streaming body writing one PictureListingDTO per line.
      */
-    @GetMapping("")
-    public Collection<PictureDTO> getPictures() {
-        return pictureService.getPictures(); // Retrieve all pictures as DTOs
+    @GetMapping(value = "", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportPictures() {
+        StreamingResponseBody body = out -> pictureService.exportPictures(out);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
     }
 
     /**
@@ -53,34 +78,69 @@ public class PictureControllerREST {
     /**
      * Endpoint to retrieve the image of a specific picture by its ID.
      *
-     * @param id the ID of the picture.
-     * @return the image file of the picture.
+     * @param id       the ID of the picture.
+     * @param version  the image version (content hash) requested, cached as immutable when current.
+     * @param width    the requested width, served from the closest resized copy when available.
+     * @param request  the HTTP request.
+     * @param response the HTTP response the image is written to.
      * @throws SQLException if there is an error retrieving the image.
      * @throws IOException  if there is an issue with the image.
      */
     @GetMapping("/{id}/image")
-    public ResponseEntity<Object> getPostImage(@PathVariable long id) throws SQLException, IOException {
+    public void getPostImage(@PathVariable long id, @RequestParam(name = "v", required = false) String version,
+                             @RequestParam(name = "w", required = false) Integer width,
+                             HttpServletRequest request, HttpServletResponse response)
+            throws SQLException, IOException {
+        // Write the image associated with the picture with its content type
+        pictureService.writePictureImage(id, version, width, request, response);
+    }
 
-        // Retrieve the image associated with the picture
-        Resource postImage = pictureService.getPictureImage(id);
+    /**
+     * Endpoint to retrieve the Deep Zoom (DZI) manifest of the tile pyramid of a picture.
+     *
+     * @param id       the ID of the picture.
+     * @param version  the image version (content hash) requested, cached as immutable when current.
+     * @param request  the HTTP request.
+     * @param response the HTTP response the manifest is written to.
+     * @throws IOException if there is an issue with the manifest.
+     */
+    @GetMapping("/{id}/tiles")
+    public void getTileManifest(@PathVariable long id, @RequestParam(name = "v", required = false) String version,
+                                HttpServletRequest request, HttpServletResponse response) throws IOException {
+        pictureService.writeTileManifest(id, version, request, response);
+    }
 
-        // Return the image as the response body with the appropriate content type
-        return ResponseEntity
-                .ok()
-                .header(HttpHeaders.CONTENT_TYPE, "image/jpeg")
-                .body(postImage);
+    /**
+     * Endpoint to retrieve one 256x256 tile of the tile pyramid of a picture.
+     *
+     * @param id       the ID of the picture.
+     * @param level    the pyramid level, 0 being the smallest.
+     * @param x        the column of the tile.
+     * @param y        the row of the tile.
+     * @param version  the image version (content hash) requested, cached as immutable when current.
+     * @param request  the HTTP request.
+     * @param response the HTTP response the tile is written to.
+     * @throws IOException if there is an issue with the tile.
+     */
+    @GetMapping("/{id}/tiles/{level}/{x}/{y}")
+    public void getTile(@PathVariable long id, @PathVariable int level, @PathVariable int x, @PathVariable int y,
+                        @RequestParam(name = "v", required = false) String version,
+                        HttpServletRequest request, HttpServletResponse response) throws IOException {
+        pictureService.writeTile(id, level, x, y, version, request, response);
     }
 
     /**
-     * Endpoint to retrieve all comments for a specific picture.
+     * Endpoint to retrieve a page of the comments of a specific picture, newest first.
      *
-     * @param id the ID of the picture.
-     * @return a collection of CommentDTOs associated with the picture.
-     * @throws IOException if there is an issue retrieving the comments.
+     * @param id     the ID of the picture.
+     * @param cursor the continuation token returned with the previous page, absent for the first page.
+     * @param size   the number of comments per page (default 10, at most 100).
+     * @return a CursorPage of CommentSimpleDTOs, with the token of the next page.
      */
     @GetMapping("/{id}/comments")
-    public Collection<CommentDTO> getComments(@PathVariable long id) throws IOException {
-        return pictureService.getComments(id); // Retrieve all comments for the picture
+    public CursorPage<CommentSimpleDTO> getComments(@PathVariable long id, @RequestParam(required = false) String cursor,
+                                                    @RequestParam(defaultValue = "10") int size) {
+        return pictureService.getComments(id, cursor, size); // Retrieve a page of comments of the picture
     }
 
     /**
@@ -118,12 +178,102 @@ public class PictureControllerREST {
         URI location = fromCurrentRequest().build().toUri();
 
         // Create the picture image using the provided file input stream
-        pictureService.createPictureImageREST(id, location, imageFile.getInputStream(), imageFile.getSize());
+        pictureService.createPictureImageREST(id, location, imageFile.getInputStream());
 
         // Return a successful response indicating the picture's image was uploaded
         return ResponseEntity.created(location).build();
     }
 
+    /**
+     * Endpoint to start a resumable, chunked upload of the image of a picture.
+     * Answers 429 while the user, or the server, already has too many uploads open.
+     *
+     * @param id             the ID of the picture.
+     * @param length         the total size of the image in bytes, if already known.
+     * @param authentication the user uploading the image.
+     * @return ResponseEntity with the new upload session and its location.
+     * @throws IOException if the upload cannot be started.
+     */
+    @PostMapping("/{id}/uploads")
+    public ResponseEntity<UploadSessionDTO> createUpload(@PathVariable long id,
+                                                         @RequestParam(required = false) Long length,
+                                                         Authentication authentication) throws IOException {
+        UploadSessionDTO upload = uploadService.createSession(id, length, authentication.getName());
+
+        // Construct the URI the chunks of the image are sent to
+        URI location = fromCurrentRequest().path("/{uploadId}").buildAndExpand(upload.id()).toUri();
+        return ResponseEntity.created(location).body(upload);
+    }
+
+    /**
+     * Endpoint to query how many bytes of a chunked upload have been received, to resume it.
+     *
+     * @param id             the ID of the picture.
+     * @param uploadId       the ID of the upload session.
+     * @param authentication the user uploading the image.
+     * @return the upload session with its current offset.
+     */
+    @GetMapping("/{id}/uploads/{uploadId}")
+    public UploadSessionDTO getUpload(@PathVariable long id, @PathVariable String uploadId,
+                                      Authentication authentication) {
+        return uploadService.getSession(id, uploadId, authentication.getName());
+    }
+
+    /**
+     * Endpoint to send a chunk of a chunked upload, as raw bytes with a Content-Range header.
+     *
+     * @param id             the ID of the picture.
+     * @param uploadId       the ID of the upload session.
+     * @param contentRange   the range of the image carried by the request, e.g. "bytes 0-1048575/52428800".
+     * @param request        the HTTP request whose body is the chunk.
+     * @param authentication the user uploading the image.
+     * @return the upload session with its new offset.
+     * @throws IOException if the chunk cannot be stored.
+     */
+    @PutMapping("/{id}/uploads/{uploadId}")
+    public UploadSessionDTO putUploadChunk(@PathVariable long id, @PathVariable String uploadId,
+                                           @RequestHeader(name = HttpHeaders.CONTENT_RANGE, required = false) String contentRange,
+                                           HttpServletRequest request, Authentication authentication)
+            throws IOException {
+        return uploadService.writeChunk(id, uploadId, authentication.getName(), contentRange, request.getInputStream());
+    }
+
+    /**
+     * Endpoint to finish a chunked upload. The image becomes the image of the picture
+     * once its SHA-256 matches the one computed by the client.
+     *
+     * @param id             the ID of the picture.
+     * @param uploadId       the ID of the upload session.
+     * @param sha256         the hex SHA-256 of the whole image.
+     * @param authentication the user uploading the image.
+     * @return ResponseEntity with the location of the picture image.
+     * @throws IOException if the image cannot be stored.
+     */
+    @PostMapping("/{id}/uploads/{uploadId}/complete")
+    public ResponseEntity<Object> completeUpload(@PathVariable long id, @PathVariable String uploadId,
+                                                 @RequestParam String sha256, Authentication authentication)
+            throws IOException {
+        // Same location as an image uploaded in a single request
+        URI location = fromCurrentContextPath().path("/api/pictures/{id}/image").buildAndExpand(id).toUri();
+        uploadService.completeSession(id, uploadId, authentication.getName(), sha256, location);
+        return ResponseEntity.created(location).build();
+    }
+
+    /**
+     * Endpoint to abandon a chunked upload and discard the bytes received so far.
+     *
+     * @param id             the ID of the picture.
+     * @param uploadId       the ID of the upload session.
+     * @param authentication the user uploading the image.
+     * @return ResponseEntity with no content.
+     */
+    @DeleteMapping("/{id}/uploads/{uploadId}")
+    public ResponseEntity<Object> cancelUpload(@PathVariable long id, @PathVariable String uploadId,
+                                               Authentication authentication) {
+        uploadService.cancelSession(id, uploadId, authentication.getName());
+        return ResponseEntity.noContent().build();
+    }
+
     /**
      * Endpoint to add a comment to a picture.
      *
@@ -2,12 +2,11 @@ package es.museotrapo.trapo.controller.web;
 
 import java.io.IOException;
 import java.util.NoSuchElementException;
-import java.util.List;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -15,12 +14,11 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.data.domain.Example;
 import org.springframework.data.domain.ExampleMatcher;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
 
 import es.museotrapo.trapo.dto.ArtistDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.model.Artist;
+import es.museotrapo.trapo.service.ArtistDeletionService;
 import es.museotrapo.trapo.service.ArtistService;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -36,10 +34,14 @@ public class ArtistController {
     @Autowired
     private ArtistService artistService;
 
+    @Autowired
+    private ArtistDeletionService artistDeletionService;
+
     /**
      * Handles the request to display all artists.
      *
-     * @param model The model to add attributes to
+     * @param model  The model to add attributes to
+     * @param cursor The continuation token of the page, absent for the first page
      * @return The view name "artists"
      */
     @GetMapping("")
@@ -47,10 +49,32 @@ public class ArtistController {
                              @RequestParam(required = false) String name,
                              @RequestParam(required = false) String nickname,
                              @RequestParam(required = false) String birthDate,
-                             Pageable artistPage) {
-        int pageSize = 3;
+                             @RequestParam(required = false) String cursor) {
+        CursorPage<ArtistDTO> artists = findArtists(name, nickname, birthDate, cursor);
+        model.addAttribute("artists", artists.content());
+        model.addAttribute("hasNext", artists.hasNext());
+        model.addAttribute("next", artists.next());
+
+        return "artists"; // Return the view name
+    }
+
+    /**
+     * Handles the request to fetch more artists for pagination.
+     *
+     * @param cursor The continuation token returned with the previous page
+     * @return The next page of ArtistDTO objects, with the token of the following one
+     */
+    @GetMapping("/more")
+    @ResponseBody
+    public CursorPage<ArtistDTO> getMoreArtists(@RequestParam(required = false) String name,
+                                                @RequestParam(required = false) String nickname,
+                                                @RequestParam(required = false) String birthDate,
+                                                @RequestParam(required = false) String cursor) {
+        return findArtists(name, nickname, birthDate, cursor);
+    }
 
-        artistPage = PageRequest.of(artistPage.getPageNumber(), pageSize);
+    private CursorPage<ArtistDTO> findArtists(String name, String nickname, String birthDate, String cursor) {
+        int pageSize = 3; // Number of artists per page
 
         if(name != null || nickname != null || birthDate != null) {
 			Artist artist = new Artist();
@@ -61,39 +85,11 @@ public class ArtistController {
 											.withStringMatcher(ExampleMatcher.StringMatcher.CONTAINING)
 											.withIgnorePaths("id", "biography");
 			Example<Artist> example = Example.of(artist, matcher);
-            System.out.println("Estamos devolviendo todos los artistas que coincidan con el ejemplo "+example);
-			Page<ArtistDTO> artists = artistService.getArtists(example, artistPage);
-            model.addAttribute("artists", artists);
-		}else{
-            Page<ArtistDTO> artists = artistService.getArtists(artistPage);
-            model.addAttribute("artists", artists);
+			return artistService.getArtists(example, cursor, pageSize);
 		}
-
-        boolean hasPrev = artistPage.getPageNumber() >= 1;
-        boolean hasNext = (artistPage.getPageNumber() * artistPage.getPageSize()) < artistService.count();
-
-        model.addAttribute("hasPrev", hasPrev);
-        model.addAttribute("prev", artistPage.getPageNumber() - 1);
-        model.addAttribute("hasNext", hasNext);
-        model.addAttribute("next", artistPage.getPageNumber() + 1);
-
-        return "artists"; // Return the view name
+        return artistService.getArtists(cursor, pageSize);
     }
 
-    /**
-     * Handles the request to fetch more artists for pagination.
-     *
-     * @param page The page number to fetch
-     * @return A list of ArtistDTO objects
-     */
-    @GetMapping("/more")
-    @ResponseBody
-    public List<ArtistDTO> getMoreArtists(@RequestParam(defaultValue = "0") int page) {
-    int pageSize = 3; // Number of artists per page
-    Page<ArtistDTO> artistPage = artistService.getArtists(PageRequest.of(page, pageSize));
-    return artistPage.getContent();
-}
-
 
     /**
      * Displays the form to create a new artist.
@@ -149,7 +145,7 @@ public class ArtistController {
     public String deleteArtist(@PathVariable long id) {
 
         try {
-            artistService.deleteArtist(id);
+            artistDeletionService.startDeletion(id); // The pictures of the artist are deleted in the background
             return "deleted_artist";
 
         } catch (NoSuchElementException e) {
@@ -215,13 +211,14 @@ public class ArtistController {
     /**
      * Handles the request to fetch an artist's biography.
      *
-     * @param id The ID of the artist
-     * @return A ResponseEntity containing the biography file
+     * @param id       The ID of the artist
+     * @param request  The HTTP request
+     * @param response The HTTP response the biography file is written to
      */
     @GetMapping("/{id}/biography")
-    public ResponseEntity<Resource> getBiography(@PathVariable Long id){
+    public void getBiography(@PathVariable Long id, HttpServletRequest request, HttpServletResponse response){
         try{
-            return artistService.getBiographyResponse(id);
+            artistService.writeBiography(id, request, response);
         } catch (IOException e){
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File was not found.", e);
         }
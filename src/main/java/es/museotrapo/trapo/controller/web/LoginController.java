@@ -1,7 +1,6 @@
 package es.museotrapo.trapo.controller.web;
 
 import es.museotrapo.trapo.dto.UserDTO;
-import es.museotrapo.trapo.security.LoginAttemptService;
 import es.museotrapo.trapo.security.jwt.UserLogingService;
 import es.museotrapo.trapo.service.UserService;
 import jakarta.servlet.http.HttpServletRequest;
@@ -14,6 +13,7 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,39 +27,29 @@ public class LoginController {
     @Autowired
     private UserLogingService userLogingService;
 
-    @Autowired
-    private LoginAttemptService loginAttemptService;
-
     /**
      * Map to store the number of failed login attempts for each user.
      * The key is the username, and the value is the number of failed attempts.
      */
     @GetMapping({"/login"})
     public String login(Model model) {
-        if(loginAttemptService.isBlocked()){
-            model.addAttribute("error", "Demasiados intentos fallidos. Inténtalo nuevamente en 10 minutos.");
-            return "loginerror";
-        }
         return "login";
     }
 
     /**
      * Handles the login error and adds an error message to the model.
+     * Failed logins are counted when they happen, not when this page is shown.
      *
-     * @param request The HTTP request containing user authentication information.
+     * @param blocked Present when the login was refused after too many failed attempts.
      * @param model   The model to add attributes to.
      * @return The view name "loginerror".
      */
     @GetMapping("/loginerror")
-    public String loginError(HttpServletRequest request, Model model) {
-
-        if (loginAttemptService.isBlocked()) {
-            model.addAttribute("error", "Demasiados intentos fallidos. Inténtalo nuevamente en 10 minutos.");
+    public String loginError(@RequestParam(required = false) String blocked, Model model) {
+        if (blocked != null) {
+            model.addAttribute("error", "Demasiados intentos fallidos. Inténtalo nuevamente en unos minutos.");
             return "loginerror";
         }
-
-        loginAttemptService.registerLoginFailure(); // Registrar intento fallido
-
         model.addAttribute("error", "Credenciales inválidas.");
         return "loginerror";
     }
@@ -1,12 +1,14 @@
 package es.museotrapo.trapo.controller.web;
 
 import es.museotrapo.trapo.dto.CommentDTO;
+import es.museotrapo.trapo.dto.CommentSimpleDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.dto.PictureListingDTO;
 import es.museotrapo.trapo.service.*;
 
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.security.core.Authentication;
 import org.springframework.ui.Model;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,9 +16,6 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-
 import java.io.IOException;
 import java.sql.SQLException;
 
@@ -24,6 +23,8 @@ import java.sql.SQLException;
 @RequestMapping("/pictures") // Maps the controller to "/picture" endpoint
 public class PictureController {
 
+    private static final int COMMENTS_PAGE_SIZE = 10; // Number of comments shown at once
+
     @Autowired
     private PictureService pictureService; // Service to handle picture-related functionality
 
@@ -40,19 +41,16 @@ public class PictureController {
      * @return "pictures" view to render all pictures
      */
     @GetMapping("")
-    public String getPictures(Model model, Pageable picturePage) {
+    public String getPictures(Model model, @RequestParam(required = false) String cursor) {
         int pageSize = 3;
-        picturePage = PageRequest.of(picturePage.getPageNumber(), pageSize);
 
-        model.addAttribute("pictures", pictureService.getPictures(picturePage)); // Add all pictures to the model
+        CursorPage<PictureListingDTO> pictures = pictureService.getPictures(cursor, pageSize);
+        model.addAttribute("pictures", pictures.content()); // Add the pictures of the page to the model
 
-        boolean hasPrev = picturePage.getPageNumber() >= 1;
-        boolean hasNext = (picturePage.getPageNumber() * picturePage.getPageSize()) < pictureService.count();
-
-        model.addAttribute("hasPrev", hasPrev);
-        model.addAttribute("prev", picturePage.getPageNumber() - 1);
-        model.addAttribute("hasNext", hasNext);
-        model.addAttribute("next", picturePage.getPageNumber() + 1);
+        // Keyset pages only go forward, the previous link goes back to the first page
+        model.addAttribute("hasPrev", cursor != null);
+        model.addAttribute("hasNext", pictures.hasNext());
+        model.addAttribute("next", pictures.next());
 
         return "pictures"; // Return the "pictures" view to render the pictures
     }
@@ -106,6 +104,12 @@ public class PictureController {
             String likedPicture = userService.isPictureLiked(picture) ? "Dislike" : "Like"; // Check if the picture
             // is liked by the user
             model.addAttribute("likedPicture", likedPicture); // Add like status to the model
+
+            // Only the newest comments are rendered, the rest are fetched on demand
+            CursorPage<CommentSimpleDTO> comments = pictureService.getComments(id, null, COMMENTS_PAGE_SIZE);
+            model.addAttribute("comments", comments.content());
+            model.addAttribute("commentsHasNext", comments.hasNext());
+            model.addAttribute("commentsNext", comments.next());
             model.addAttribute("picture", picture); // Add image path to the
             // model
             return "show_picture"; // Return the "show_picture" view to display the picture details
@@ -114,24 +118,35 @@ public class PictureController {
         }
     }
 
+    /**
+     * Handles the request to fetch more comments of a picture, newest first.
+     *
+     * @param id     The ID of the picture
+     * @param cursor The continuation token returned with the previous page
+     * @return The next page of comments, with the token of the following one
+     */
+    @GetMapping("/{id}/comments")
+    @ResponseBody
+    public CursorPage<CommentSimpleDTO> getMoreComments(@PathVariable long id, @RequestParam(required = false) String cursor) {
+        return pictureService.getComments(id, cursor, COMMENTS_PAGE_SIZE);
+    }
+
     /**
      * Handles the GET request to retrieve an image by its filename and display it
+     * The image is written straight to the response, or 404 is returned if the picture has no image
      *
-     * @return ResponseEntity with the image, or 404 if the image is not found
+     * @param id       The ID of the picture
+     * @param version  The image version (content hash) requested, cached as immutable when current
+     * @param width    The requested width, served from the closest resized copy when available
+     * @param request  The HTTP request
+     * @param response The HTTP response the image is written to
      */
     @GetMapping("/{id}/{ImageFile}")
-    public ResponseEntity<Resource> getImage(@PathVariable long id) throws SQLException {
-
-        PictureDTO picture = pictureService.getPicture(id);
-
-        // Check if the image exists and is readable
-        if (picture.image() != null) {
-            Resource file = pictureService.getPictureImage(id);
-            return ResponseEntity.ok().header(HttpHeaders.CONTENT_TYPE, "image/jpeg") // Set MIME type for the image
-                    .body(file); // Return the image in the response
-        } else {
-            return ResponseEntity.notFound().build(); // Return 404 if image is not found
-        }
+    public void getImage(@PathVariable long id, @RequestParam(name = "v", required = false) String version,
+                         @RequestParam(name = "w", required = false) Integer width,
+                         HttpServletRequest request, HttpServletResponse response)
+            throws SQLException, IOException {
+        pictureService.writePictureImage(id, version, width, request, response); // Write the image with its content type
     }
 
     /**
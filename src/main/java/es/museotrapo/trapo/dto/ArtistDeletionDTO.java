@@ -0,0 +1,8 @@
+package es.museotrapo.trapo.dto;
+
+public record ArtistDeletionDTO(
+        long artistId,
+        String status,
+        long deletedPictures,
+        long totalPictures) {
+}
@@ -0,0 +1,9 @@
+package es.museotrapo.trapo.dto;
+
+import java.util.List;
+
+public record CursorPage<T>(
+        List<T> content,
+        String next,
+        boolean hasNext) {
+}
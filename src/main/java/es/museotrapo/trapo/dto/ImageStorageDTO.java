@@ -0,0 +1,6 @@
+package es.museotrapo.trapo.dto;
+
+public record ImageStorageDTO(
+        long storedBytes,
+        long referencedBytes) {
+}
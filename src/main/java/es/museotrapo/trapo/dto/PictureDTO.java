@@ -1,14 +1,12 @@
 package es.museotrapo.trapo.dto;
 
-import java.util.List;
-
 public record PictureDTO(
         Long id,
         String name,
         String date,
         String image,
+        String imageHash,
         Long artistId,
         ArtistSimpleDTO artist,
-        List<UserSimpleDTO> userLikes,
-        List<CommentSimpleDTO> comments) {
+        long likeCount) {
 }
@@ -0,0 +1,12 @@
+package es.museotrapo.trapo.dto;
+
+public record PictureListingDTO(
+        Long id,
+        String name,
+        String date,
+        String imageHash,
+        Long artistId,
+        String artistNickname,
+        long likeCount,
+        long commentCount) {
+}
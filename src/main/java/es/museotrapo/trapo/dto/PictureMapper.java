@@ -15,6 +15,9 @@ public interface PictureMapper {
 
     /**
      * Converts a single Picture domain object into a PictureDTO.
+     * Neither the comments nor the likes of the picture are loaded, a picture may have thousands
+     * of them: likes are only counted, see likeCount, and comments are read by pages from
+     * PictureService.getComments.
      *
      * @param picture the Picture domain object to be converted
      * @return the corresponding PictureDTO
@@ -31,13 +34,15 @@ public interface PictureMapper {
 
     /**
      * Converts a PictureDTO into a Picture domain object.
-     * This method ignores the 'imageFile' field during the conversion.
-     * The 'imageFile' field might be handled differently or excluded intentionally.
+     * This method ignores the 'storedImage' and 'comments' fields during the conversion.
+     * Image content is only set by PictureService when an image is uploaded.
      *
      * @param pictureDTO the PictureDTO to be converted
      * @return the corresponding Picture domain object
      */
-    @Mapping(target = "imageFile", ignore = true)
-    // Ignore the 'imageFile' field during mapping
+    @Mapping(target = "storedImage", ignore = true)
+    // Ignore the image field during mapping
+    @Mapping(target = "comments", ignore = true)
+    // Comments are only added through PictureService.addComment
     Picture toDomain(PictureDTO pictureDTO);
 }
@@ -0,0 +1,8 @@
+package es.museotrapo.trapo.dto;
+
+public record UploadSessionDTO(
+        String id,
+        Long pictureId,
+        long offset,
+        Long length) {
+}
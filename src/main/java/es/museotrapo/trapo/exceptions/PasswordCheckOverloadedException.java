@@ -0,0 +1,14 @@
+package es.museotrapo.trapo.exceptions;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+
+/**
+ * Thrown when a password cannot be checked because too many checks are already waiting.
+ * The credentials were not looked at, so the login must not be counted as failed.
+ */
+public class PasswordCheckOverloadedException extends AuthenticationServiceException {
+
+    public PasswordCheckOverloadedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,15 @@
+package es.museotrapo.trapo.exceptions;
+
+public class UploadOffsetMismatchException extends RuntimeException {
+
+    private final long offset;
+
+    public UploadOffsetMismatchException(String message, long offset) {
+        super(message);
+        this.offset = offset;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Objects;
 
 
 @Entity
+@Table(indexes = @Index(name = "idx_comment_picture", columnList = "picture_id, id")) // Pages of the comments of a picture
 public class Comment {
 
     @Id
@@ -0,0 +1,45 @@
+package es.museotrapo.trapo.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+
+/**
+ * An image file in the ImageStore, shared by every picture whose image has the same content.
+ * The file is deleted once the last picture referencing it is gone.
+ */
+@Entity
+public class ImageObject {
+
+    @Id
+    @Column(length = 64)
+    private String hash;
+
+    private long size;
+
+    // Number of pictures using the image, only changed through atomic updates in ImageObjectRepository
+    private long referenceCount;
+
+    // Constructors
+    protected ImageObject() {
+    }
+
+    public ImageObject(String hash, long size) {
+        this.hash = hash;
+        this.size = size;
+        this.referenceCount = 1;
+    }
+
+    // Getters
+    public String getHash() {
+        return hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getReferenceCount() {
+        return referenceCount;
+    }
+}
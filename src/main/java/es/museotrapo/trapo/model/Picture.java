@@ -1,11 +1,11 @@
 package es.museotrapo.trapo.model;
 
-import java.sql.Blob;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 
 @Entity
@@ -20,19 +20,28 @@ public class Picture {
 
     private String image;
 
-    @Lob
-    @JsonIgnore
-    private Blob imageFile;
+    // Image kept in the ImageStore, addressed by the SHA-256 of its content
+    private String imageHash;
+    private Long imageSize;
+    private String imageContentType;
+
+    // Denormalized counters, only changed by single UPDATE statements in PictureRepository
+    @Column(nullable = false, updatable = false)
+    private long likeCount;
+    @Column(nullable = false, updatable = false)
+    private long commentCount;
+
+    // Legacy image bytes still stored in the database live in PictureImage, never loaded with the picture
 
     @ManyToOne
     private Artist artist;
 
     // Lists inside of a picture
-    @ManyToMany(cascade = CascadeType.MERGE)
-    private List<User> userLikes = new ArrayList<>(); // Users wich give like to the picture
+    @OneToMany(mappedBy = "picture")
+    private Set<PictureLike> likes = new HashSet<>(); // Likes given to the picture, written through PictureLikeRepository and never loaded: see likeCount
 
-    @OneToMany(cascade = CascadeType.ALL)
-    private List<Comment> comments = new ArrayList<>(); // Comments in the picture
+    @OneToMany(mappedBy = "picture", cascade = CascadeType.ALL)
+    private List<Comment> comments = new ArrayList<>(); // Comments in the picture, owned by Comment.picture
 
     // Constructors
     public Picture() {
@@ -44,13 +53,6 @@ public class Picture {
         this.date = date;
     }
 
-    public Picture(String name, String date, Blob imageFile, Artist artist) {
-        this.name = name;
-        this.imageFile = imageFile;
-        this.date = date;
-        this.artist = artist;
-    }
-
     // Getters & Setters
     public Long getId() {
         return id;
@@ -72,12 +74,37 @@ public class Picture {
         this.name = name;
     }
 
-    public Blob getImageFile() {
-        return imageFile;
+    public String getImageHash() {
+        return imageHash;
     }
 
-    public void setImageFile(Blob imageFile) {
-        this.imageFile = imageFile;
+    public Long getImageSize() {
+        return imageSize;
+    }
+
+    public String getImageContentType() {
+        return imageContentType;
+    }
+
+    public StoredImage getStoredImage() {
+        if (imageHash == null) {
+            return null;
+        }
+        return new StoredImage(imageHash, imageSize, imageContentType);
+    }
+
+    public void setStoredImage(StoredImage storedImage) {
+        this.imageHash = storedImage != null ? storedImage.hash() : null;
+        this.imageSize = storedImage != null ? storedImage.size() : null;
+        this.imageContentType = storedImage != null ? storedImage.contentType() : null;
+    }
+
+    public long getLikeCount() {
+        return likeCount;
+    }
+
+    public long getCommentCount() {
+        return commentCount;
     }
 
     public String getDate() {
@@ -96,14 +123,6 @@ public class Picture {
         this.artist = artist;
     }
 
-    public List<User> getUserLikes() {
-        return userLikes;
-    }
-
-    public void setUserLikes(List<User> userLikes) {
-        this.userLikes = userLikes;
-    }
-
     public List<Comment> getComments() {
         return this.comments;
     }
@@ -120,14 +139,6 @@ public class Picture {
         return this.artist.getId();
     }
 
-    public List<String> getNameUserLikes() {
-        List<String> nameUserLikes = new ArrayList<>();
-        for (User user : this.userLikes) {
-            nameUserLikes.add(user.getName());
-        }
-        return nameUserLikes;
-    }
-
     public List<String> getCommentsMessage() {
         List<String> commentsMessage = new ArrayList<>();
         for (Comment comment : this.comments) {
@@ -0,0 +1,54 @@
+package es.museotrapo.trapo.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import java.sql.Blob;
+
+/**
+ * Legacy image bytes of a picture, kept in their own table so that reading pictures never reads the blob.
+ * Shares its primary key with the picture and is only loaded when the image itself is requested.
+ * Images are moved from here to the ImageStore with --migrate-images.
+ */
+@Entity
+public class PictureImage {
+
+    @Id
+    private Long id;
+
+    @MapsId
+    @OneToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "picture_id")
+    @OnDelete(action = OnDeleteAction.CASCADE) // Removed by the database together with its picture
+    private Picture picture;
+
+    @Lob
+    private Blob data;
+
+    // Constructors
+    protected PictureImage() {
+    }
+
+    public PictureImage(Picture picture, Blob data) {
+        this.picture = picture;
+        this.data = data;
+    }
+
+    // Getters & Setters
+    public Long getId() {
+        return id;
+    }
+
+    public Picture getPicture() {
+        return picture;
+    }
+
+    public Blob getData() {
+        return data;
+    }
+
+    public void setData(Blob data) {
+        this.data = data;
+    }
+}
@@ -0,0 +1,55 @@
+package es.museotrapo.trapo.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+/**
+ * A like given by a user to a picture, one row per pair.
+ * Likes are written one row at a time through PictureLikeRepository, so liking or unliking a
+ * picture never rewrites the other likes of the picture, however many there are.
+ * The primary key starts with the picture and a second index starts with the user, so both
+ * "who likes this picture" and "what does this user like" are index lookups.
+ */
+@Entity
+@Table(indexes = @Index(name = "idx_picture_like_user", columnList = "user_id, picture_id"))
+public class PictureLike {
+
+    @EmbeddedId
+    private PictureLikeId id;
+
+    @MapsId("pictureId")
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "picture_id")
+    @OnDelete(action = OnDeleteAction.CASCADE) // Removed by the database together with its picture
+    private Picture picture;
+
+    @MapsId("userId")
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "user_id")
+    @OnDelete(action = OnDeleteAction.CASCADE) // Removed by the database together with its user
+    private User user;
+
+    // Constructors
+    protected PictureLike() {
+    }
+
+    public PictureLike(Picture picture, User user) {
+        this.id = new PictureLikeId(picture.getId(), user.getId());
+        this.picture = picture;
+        this.user = user;
+    }
+
+    // Getters
+    public PictureLikeId getId() {
+        return id;
+    }
+
+    public Picture getPicture() {
+        return picture;
+    }
+
+    public User getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,46 @@
+package es.museotrapo.trapo.model;
+
+import jakarta.persistence.Embeddable;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Composite key of a like: the picture and the user who likes it.
+ */
+@Embeddable
+public class PictureLikeId implements Serializable {
+
+    private Long pictureId;
+    private Long userId;
+
+    // Constructors
+    protected PictureLikeId() {
+    }
+
+    public PictureLikeId(Long pictureId, Long userId) {
+        this.pictureId = pictureId;
+        this.userId = userId;
+    }
+
+    // Getters
+    public Long getPictureId() {
+        return pictureId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        PictureLikeId that = (PictureLikeId) o;
+        return Objects.equals(pictureId, that.pictureId) && Objects.equals(userId, that.userId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(pictureId, userId);
+    }
+}
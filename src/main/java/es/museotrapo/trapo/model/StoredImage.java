@@ -0,0 +1,14 @@
+package es.museotrapo.trapo.model;
+
+/**
+ * Metadata of an image kept in the ImageStore.
+ *
+ * @param hash        hex encoded SHA-256 of the image bytes, also its address in the store
+ * @param size        size of the image in bytes
+ * @param contentType MIME type detected from the image content
+ */
+public record StoredImage(
+        String hash,
+        long size,
+        String contentType) {
+}
@@ -1,8 +1,10 @@
 package es.museotrapo.trapo.model;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import jakarta.persistence.*;
 
@@ -23,8 +25,8 @@ public class User {
     private List<String> roles;
 
     // Lists inside a User
-    @ManyToMany(mappedBy = "userLikes", cascade = CascadeType.PERSIST)
-    private List<Picture> likedPictures = new ArrayList<>();// List of all his liked pictures
+    @OneToMany(mappedBy = "user")
+    private Set<PictureLike> likes = new HashSet<>();// Likes given to pictures, written through PictureLikeRepository
 
     @OneToMany(mappedBy = "author", cascade = CascadeType.ALL)
     private List<Comment> comments = new ArrayList<>();// List of comments in all pictures
@@ -74,16 +76,16 @@ public class User {
     }
 
     public List<Picture> getLikedPictures() {
-        return this.likedPictures;
-    }
-
-    public void setLikedPictures(List<Picture> likedPictures) {
-        this.likedPictures = likedPictures;
+        List<Picture> likedPictures = new ArrayList<>();
+        for (PictureLike like : this.likes) {
+            likedPictures.add(like.getPicture());
+        }
+        return likedPictures;
     }
 
     public List<String> getNameLikedPictures() {
         List<String> nameLikedPictures = new ArrayList<>();
-        for (Picture picture : likedPictures) {
+        for (Picture picture : getLikedPictures()) {
             nameLikedPictures.add(picture.getName());
         }
         return nameLikedPictures;
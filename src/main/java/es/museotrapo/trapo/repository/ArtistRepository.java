@@ -2,10 +2,17 @@ package es.museotrapo.trapo.repository;
 
 import es.museotrapo.trapo.model.Artist;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.lang.NonNull;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
+import java.util.List;
+import java.util.Optional;
+
 /**
  * Repository interface for managing Artist entities. Extends JpaRepository
  * to provide CRUD operations and custom query methods for Artist entities.
@@ -21,5 +28,32 @@ public interface ArtistRepository extends JpaRepository<Artist, Long> {
     @NonNull
     Page<Artist> findAll(Pageable pageable);
 
+    /**
+     * Retrieves the artists that come after a given ID, in ID order, for keyset pagination.
+     *
+     * @param id    the ID of the last artist of the previous page, 0 for the first page
+     * @param limit the maximum number of artists to read
+     * @return the artists after the given ID
+     */
+    List<Artist> findByIdGreaterThanOrderByIdAsc(long id, Limit limit);
+
+    /**
+     * Locks an artist row until the end of the transaction, so no picture can be added to the
+     * artist meanwhile.
+     *
+     * @param id the ID of the artist
+     * @return the ID of the artist, empty if it does not exist
+     */
+    @Query(value = "SELECT id FROM artist WHERE id = :id FOR UPDATE", nativeQuery = true)
+    Optional<Long> lockById(@Param("id") Long id);
+
+    /**
+     * Deletes an artist row without loading its pictures. Its pictures must be deleted first.
+     *
+     * @param id the ID of the artist
+     */
+    @Modifying
+    @Query(value = "DELETE FROM artist WHERE id = :id", nativeQuery = true)
+    void deleteByIdCustom(@Param("id") Long id);
 }
 
@@ -1,12 +1,64 @@
 package es.museotrapo.trapo.repository;
 
+import es.museotrapo.trapo.dto.CommentSimpleDTO;
 import es.museotrapo.trapo.model.Comment;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /*
  * CommentRepository interface for managing Comment entities.
  */
 public interface CommentRepository extends JpaRepository<Comment, Long> {
-}
 
+    /**
+     * Retrieves the comments of a picture that are older than a given comment, newest first.
+     * Used for keyset pagination: the (picture_id, id) index is used to seek to the page, whatever
+     * its depth, and only the name of each author is read instead of its whole graph.
+     *
+     * @param pictureId the ID of the picture
+     * @param before    the ID of the last comment of the previous page, Long.MAX_VALUE for the first page
+     * @param limit     the maximum number of comments to read
+     * @return the comments of the picture before the given ID
+     */
+    @Query("SELECT new es.museotrapo.trapo.dto.CommentSimpleDTO(c.id, c.message, a.name) "
+            + "FROM Comment c LEFT JOIN c.author a "
+            + "WHERE c.picture.id = :pictureId AND c.id < :before ORDER BY c.id DESC")
+    List<CommentSimpleDTO> findPageByPicture(@Param("pictureId") long pictureId, @Param("before") long before,
+                                             Limit limit);
+
+    /**
+     * Deletes every comment of a picture in a single statement, without loading them.
+     *
+     * @param pictureId the ID of the picture
+     * @return the number of comments deleted
+     */
+    @Modifying
+    @Query("DELETE FROM Comment c WHERE c.picture.id = :pictureId")
+    int deleteByPicture(@Param("pictureId") long pictureId);
 
+    /**
+     * Deletes every comment written by a user in a single statement, without loading them.
+     *
+     * @param authorId the ID of the user
+     * @return the number of comments deleted
+     */
+    @Modifying
+    @Query("DELETE FROM Comment c WHERE c.author.id = :authorId")
+    int deleteByAuthor(@Param("authorId") long authorId);
+
+    /**
+     * Deletes every comment of several pictures in a single statement, without loading them.
+     *
+     * @param pictureIds the IDs of the pictures
+     * @return the number of comments deleted
+     */
+    @Modifying
+    @Query("DELETE FROM Comment c WHERE c.picture.id IN :pictureIds")
+    int deleteByPictures(@Param("pictureIds") Collection<Long> pictureIds);
+}
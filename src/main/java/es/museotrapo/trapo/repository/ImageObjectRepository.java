@@ -0,0 +1,53 @@
+package es.museotrapo.trapo.repository;
+
+import es.museotrapo.trapo.dto.ImageStorageDTO;
+import es.museotrapo.trapo.model.ImageObject;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * Repository interface for the reference counts of the images in the ImageStore.
+ * Counts are changed with single UPDATE statements, so concurrent uploads and deletions never lose an update.
+ */
+public interface ImageObjectRepository extends JpaRepository<ImageObject, String> {
+
+    /**
+     * Adds a reference to an image.
+     *
+     * @param hash the SHA-256 of the image
+     * @return 1 if the image was already tracked, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE ImageObject o SET o.referenceCount = o.referenceCount + 1 WHERE o.hash = :hash")
+    int incrementReferences(@Param("hash") String hash);
+
+    /**
+     * Removes a reference to an image.
+     *
+     * @param hash the SHA-256 of the image
+     * @return 1 if a reference was removed, 0 if the image is not tracked
+     */
+    @Modifying
+    @Query("UPDATE ImageObject o SET o.referenceCount = o.referenceCount - 1 WHERE o.hash = :hash AND o.referenceCount > 0")
+    int decrementReferences(@Param("hash") String hash);
+
+    /**
+     * Stops tracking an image if nothing references it anymore.
+     *
+     * @param hash the SHA-256 of the image
+     * @return 1 if the image was unreferenced and removed, 0 otherwise
+     */
+    @Modifying
+    @Query("DELETE FROM ImageObject o WHERE o.hash = :hash AND o.referenceCount = 0")
+    int deleteIfUnreferenced(@Param("hash") String hash);
+
+    /**
+     * Totals of the ImageStore, read in a single aggregate so both come from the same state:
+     * the bytes actually kept, and the bytes it would keep if every picture had its own copy.
+     */
+    @Query("SELECT new es.museotrapo.trapo.dto.ImageStorageDTO(COALESCE(SUM(o.size), 0), "
+            + "COALESCE(SUM(o.size * o.referenceCount), 0)) FROM ImageObject o")
+    ImageStorageDTO sumBytes();
+}
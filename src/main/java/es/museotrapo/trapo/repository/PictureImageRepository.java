@@ -0,0 +1,34 @@
+package es.museotrapo.trapo.repository;
+
+import es.museotrapo.trapo.model.PictureImage;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * Repository interface for the legacy image bytes of pictures, stored apart from the Picture table.
+ */
+public interface PictureImageRepository extends JpaRepository<PictureImage, Long> {
+
+    /**
+     * Retrieves the IDs of the pictures whose image is still stored in the database.
+     *
+     * @return the IDs of the pictures pending migration to the ImageStore
+     */
+    @Query("SELECT i.id FROM PictureImage i JOIN Picture p ON p.id = i.id WHERE p.imageHash IS NULL ORDER BY i.id")
+    List<Long> findIdsPendingMigration();
+
+    /**
+     * Deletes the legacy image of a picture, if it has one, without loading it.
+     *
+     * @param pictureId the ID of the picture
+     */
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM PictureImage i WHERE i.id = :pictureId")
+    void deleteByPictureId(@Param("pictureId") Long pictureId);
+}
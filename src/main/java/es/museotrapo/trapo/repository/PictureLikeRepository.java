@@ -0,0 +1,69 @@
+package es.museotrapo.trapo.repository;
+
+import es.museotrapo.trapo.model.PictureLike;
+import es.museotrapo.trapo.model.PictureLikeId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+
+/**
+ * Repository interface for the likes of pictures.
+ * Likes are added and removed with single INSERT and DELETE statements, without loading
+ * the likes of the picture or of the user.
+ */
+public interface PictureLikeRepository extends JpaRepository<PictureLike, PictureLikeId> {
+
+    /**
+     * Adds a like. Fails if the user already likes the picture.
+     *
+     * @param pictureId the ID of the picture
+     * @param userId    the ID of the user
+     */
+    @Modifying
+    @Query(value = "INSERT INTO picture_like (picture_id, user_id) VALUES (:pictureId, :userId)", nativeQuery = true)
+    void insertLike(@Param("pictureId") Long pictureId, @Param("userId") Long userId);
+
+    /**
+     * Removes a like.
+     *
+     * @param pictureId the ID of the picture
+     * @param userId    the ID of the user
+     * @return 1 if the like was removed, 0 if the user did not like the picture
+     */
+    @Modifying
+    @Query("DELETE FROM PictureLike l WHERE l.id.pictureId = :pictureId AND l.id.userId = :userId")
+    int deleteLike(@Param("pictureId") Long pictureId, @Param("userId") Long userId);
+
+    /**
+     * Removes every like of a picture in a single statement.
+     *
+     * @param pictureId the ID of the picture
+     * @return the number of likes removed
+     */
+    @Modifying
+    @Query("DELETE FROM PictureLike l WHERE l.id.pictureId = :pictureId")
+    int deleteByPicture(@Param("pictureId") Long pictureId);
+
+    /**
+     * Removes every like given by a user in a single statement.
+     *
+     * @param userId the ID of the user
+     * @return the number of likes removed
+     */
+    @Modifying
+    @Query("DELETE FROM PictureLike l WHERE l.id.userId = :userId")
+    int deleteByUser(@Param("userId") Long userId);
+
+    /**
+     * Removes every like of several pictures in a single statement.
+     *
+     * @param pictureIds the IDs of the pictures
+     * @return the number of likes removed
+     */
+    @Modifying
+    @Query("DELETE FROM PictureLike l WHERE l.id.pictureId IN :pictureIds")
+    int deleteByPictures(@Param("pictureIds") Collection<Long> pictureIds);
+}
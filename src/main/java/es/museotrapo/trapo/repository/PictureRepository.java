@@ -1,15 +1,25 @@
 package es.museotrapo.trapo.repository;
 
+import es.museotrapo.trapo.dto.PictureListingDTO;
 import es.museotrapo.trapo.model.Picture;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.lang.NonNull;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+
 /**
  * Repository interface for managing Picture entities. Extends JpaRepository
  * to provide CRUD operations and custom query methods for Picture entities.
@@ -17,6 +27,11 @@ import org.springframework.lang.NonNull;
  */
 public interface PictureRepository extends JpaRepository<Picture, Long> {
 
+    // Likes and comments are read from the counters, the collections are never loaded
+    String LISTING_SELECT = "SELECT new es.museotrapo.trapo.dto.PictureListingDTO("
+            + "p.id, p.name, p.date, p.imageHash, a.id, a.nickname, p.likeCount, p.commentCount) "
+            + "FROM Picture p LEFT JOIN p.artist a";
+
     /**
      * Retrieves all Picture entities in a paginated manner.
      *
@@ -26,9 +41,141 @@ public interface PictureRepository extends JpaRepository<Picture, Long> {
     @NonNull
     Page<Picture> findAll(Pageable pageable);
 
+    /**
+     * Retrieves the flat listing of the pictures that come after a given ID, in ID order.
+     * Used for keyset pagination: the index on the primary key is used to seek to the page,
+     * whatever its depth, and no COUNT query is needed.
+     *
+     * @param after the ID of the last picture of the previous page, 0 for the first page
+     * @param limit the maximum number of pictures to read
+     * @return the listing of the pictures after the given ID
+     */
+    @Query(LISTING_SELECT + " WHERE p.id > :after ORDER BY p.id")
+    List<PictureListingDTO> findListingsAfter(@Param("after") long after, Limit limit);
+
+    /**
+     * Streams the flat listing of every picture, in ID order. Rows are fetched from the
+     * database in batches while the stream is consumed, so the whole catalog is never in memory.
+     * Must be consumed, and closed, inside a transaction.
+     *
+     * @return a stream of picture listings
+     */
+    @Query(LISTING_SELECT + " ORDER BY p.id")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    Stream<PictureListingDTO> streamListings();
+
+    /**
+     * Counts a new like of a picture.
+     *
+     * @param id the ID of the picture
+     * @return 1 if the picture exists, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE Picture p SET p.likeCount = p.likeCount + 1 WHERE p.id = :id")
+    int incrementLikeCount(@Param("id") long id);
+
+    /**
+     * Counts a removed like of a picture.
+     *
+     * @param id the ID of the picture
+     * @return 1 if the counter was decremented, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE Picture p SET p.likeCount = p.likeCount - 1 WHERE p.id = :id AND p.likeCount > 0")
+    int decrementLikeCount(@Param("id") long id);
+
+    /**
+     * Counts the removal of every like of a user, before the user is deleted.
+     *
+     * @param userId the ID of the user
+     * @return the number of pictures whose counter was decremented
+     */
+    @Modifying
+    @Query("UPDATE Picture p SET p.likeCount = p.likeCount - 1 WHERE p.likeCount > 0 AND p.id IN "
+            + "(SELECT l.id.pictureId FROM PictureLike l WHERE l.id.userId = :userId)")
+    int decrementLikeCountsOfUser(@Param("userId") Long userId);
+
+    /**
+     * Uncounts every comment written by a user, on all the pictures they commented, in a single statement.
+     * Must run before the comments are deleted.
+     *
+     * @param userId the ID of the user
+     * @return the number of pictures updated
+     */
     @Modifying
+    @Query("UPDATE Picture p SET p.commentCount = p.commentCount - "
+            + "(SELECT COUNT(c) FROM Comment c WHERE c.picture = p AND c.author.id = :userId) "
+            + "WHERE p.id IN (SELECT c.picture.id FROM Comment c WHERE c.author.id = :userId)")
+    int decrementCommentCountsOfUser(@Param("userId") Long userId);
+
+    /**
+     * Counts a new comment on a picture.
+     *
+     * @param id the ID of the picture
+     * @return 1 if the picture exists, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE Picture p SET p.commentCount = p.commentCount + 1 WHERE p.id = :id")
+    int incrementCommentCount(@Param("id") long id);
+
+    /**
+     * Counts a removed comment of a picture.
+     *
+     * @param id the ID of the picture
+     * @return 1 if the counter was decremented, 0 otherwise
+     */
+    @Modifying
+    @Query("UPDATE Picture p SET p.commentCount = p.commentCount - 1 WHERE p.id = :id AND p.commentCount > 0")
+    int decrementCommentCount(@Param("id") long id);
+
+    /**
+     * Recomputes the like and comment counters from the rows they count, only updating the
+     * pictures whose counters drifted.
+     *
+     * @return the number of pictures whose counters were fixed
+     */
+    @Modifying
+    @Query(value = "UPDATE picture p SET "
+            + "like_count = (SELECT COUNT(*) FROM picture_like l WHERE l.picture_id = p.id), "
+            + "comment_count = (SELECT COUNT(*) FROM comment c WHERE c.picture_id = p.id) "
+            + "WHERE p.like_count <> (SELECT COUNT(*) FROM picture_like l WHERE l.picture_id = p.id) "
+            + "OR p.comment_count <> (SELECT COUNT(*) FROM comment c WHERE c.picture_id = p.id)",
+            nativeQuery = true)
+    int repairCounters();
+
+    // Pending changes go first, and the rows removed by the bulk deletes must not stay in the persistence context
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
     @Query(value = "DELETE FROM picture WHERE id = :id", nativeQuery = true)
     void deleteByIdCustom(@Param("id") Long id);
 
+    /**
+     * Counts the pictures of an artist.
+     *
+     * @param artistId the ID of the artist
+     * @return the number of pictures painted by the artist
+     */
+    @Query("SELECT COUNT(p) FROM Picture p WHERE p.artist.id = :artistId")
+    long countByArtist(@Param("artistId") long artistId);
+
+    /**
+     * Retrieves the first pictures of an artist, in ID order, to delete them a batch at a time.
+     *
+     * @param artistId the ID of the artist
+     * @param limit    the maximum number of pictures to read
+     * @return the pictures, without their comments, likes or legacy image
+     */
+    @Query("SELECT p FROM Picture p WHERE p.artist.id = :artistId ORDER BY p.id")
+    List<Picture> findBatchByArtist(@Param("artistId") long artistId, Limit limit);
+
+    /**
+     * Deletes pictures in a single statement. Their likes and comments must be deleted first,
+     * their legacy images are removed by the database.
+     *
+     * @param ids the IDs of the pictures
+     */
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("DELETE FROM Picture p WHERE p.id IN :ids")
+    void deleteByIds(@Param("ids") Collection<Long> ids);
+
 }
 
@@ -2,6 +2,9 @@ package es.museotrapo.trapo.repository;
 
 import es.museotrapo.trapo.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.Optional;
 
@@ -12,4 +15,23 @@ import java.util.Optional;
 public interface UserRepository extends JpaRepository<User, Long> {
     Optional<User> findByName(String name);
     Optional<User> findByEmail(String email);
+
+    /**
+     * Deletes the role rows of a user in a single statement.
+     *
+     * @param id the ID of the user
+     */
+    @Modifying
+    @Query(value = "DELETE FROM user_roles WHERE user_id = :id", nativeQuery = true)
+    void deleteRoles(@Param("id") Long id);
+
+    /**
+     * Deletes a user row without loading it. Its likes, comments and roles must be deleted first.
+     *
+     * @param id the ID of the user
+     */
+    // Pending changes go first, and the rows removed by the bulk deletes must not stay in the persistence context
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "DELETE FROM usertable WHERE id = :id", nativeQuery = true)
+    void deleteByIdCustom(@Param("id") Long id);
 }
@@ -0,0 +1,117 @@
+package es.museotrapo.trapo.security;
+
+import es.museotrapo.trapo.exceptions.PasswordCheckOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks passwords on a small pool of threads with a bounded queue.
+ * A password hash such as BCrypt is slow by design, so a burst of logins checked on the request
+ * threads would take all of them and all the CPU, and browsing would stall. Here at most a few
+ * hashes are computed at once, a few more logins wait for their turn, and the rest are refused
+ * right away with a PasswordCheckOverloadedException instead of holding a request thread.
+ * Encoding new passwords stays on the calling thread: it only happens on registration and
+ * profile updates.
+ */
+public class BoundedPasswordEncoder implements PasswordEncoder {
+
+    private final PasswordEncoder delegate;
+    private final ThreadPoolExecutor executor;
+
+    private final Timer hashTimer;
+    private final Timer queueTimer;
+    private final Counter rejections;
+
+    /**
+     * Constructor for BoundedPasswordEncoder.
+     *
+     * @param delegate      the PasswordEncoder doing the actual hashing
+     * @param meterRegistry the MeterRegistry where hash and queue times are published
+     * @param threads       the number of passwords checked at once, 0 for half of the processors
+     * @param queueCapacity the number of checks that may wait for a thread
+     */
+    public BoundedPasswordEncoder(PasswordEncoder delegate, MeterRegistry meterRegistry, int threads, int queueCapacity) {
+        this.delegate = delegate;
+        int poolSize = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "password-check-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.hashTimer = Timer.builder("trapo.login.password.hash")
+                .description("Time spent checking a password against its hash")
+                .register(meterRegistry);
+        this.queueTimer = Timer.builder("trapo.login.password.queue")
+                .description("Time a password check waited for a thread")
+                .register(meterRegistry);
+        this.rejections = Counter.builder("trapo.login.password.rejected")
+                .description("Password checks refused because the queue was full")
+                .register(meterRegistry);
+        Gauge.builder("trapo.login.password.waiting", executor, e -> e.getQueue().size())
+                .description("Password checks waiting for a thread")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return delegate.encode(rawPassword);
+    }
+
+    /**
+     * Checks a password on the password threads, waiting for the result.
+     *
+     * @throws PasswordCheckOverloadedException if too many checks are already waiting
+     */
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        long queuedAt = System.nanoTime();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> {
+                queueTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                return hashTimer.recordCallable(() -> delegate.matches(rawPassword, encodedPassword));
+            });
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw new PasswordCheckOverloadedException("Too many logins in progress");
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException("Interrupted while checking the password", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new AuthenticationServiceException("Could not check the password", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return delegate.upgradeEncoding(encodedPassword);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
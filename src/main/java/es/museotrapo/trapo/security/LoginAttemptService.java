@@ -1,49 +1,223 @@
 package es.museotrapo.trapo.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Throttles failed logins with sliding-window counters.
+ * Failures are counted per username and client IP, so guessing the password of an account only
+ * blocks that account from that client, and per client IP, with a higher limit, so a single client
+ * cannot try many accounts either. Counts decay as the window slides instead of being cleared
+ * after a fixed lock time.
+ * Every login reserves an attempt before its password is checked, with a single CAS that also
+ * checks the limit, so parallel requests can never get more guesses than the limit between them.
+ * The attempt stays counted as a failure unless the login succeeds or is not checked at all.
+ * Counters live in a bounded Caffeine cache and are dropped once idle for two windows, when they
+ * could not hold any failure anymore.
+ */
 @Service
 public class LoginAttemptService {
 
-    private static final int MAX_ATTEMPTS = 3; // Maximum number of failed attempts
-    private static final long LOCK_TIME_DURATION = 10 * 60 * 1000; // Block time (15 seconds in ms)
-
-    private static int failedAttempts = 0; // Global counter of failed attempts
-    private static long lockTime = 0; // Time when the user is blocked
+    private final long windowMillis;
+    private final int maxFailuresPerUser;
+    private final int maxFailuresPerClient;
+    private final LongSupplier clock;
+    private final Cache<String, SlidingWindow> windows;
 
-    // Register failed login attempt
-    public void registerLoginFailure() {
-        // if is blocked, do not permit any more attempts
-        if (isBlocked()) return;
+    @Autowired
+    public LoginAttemptService(@Value("${trapo.login.throttle.window:PT10M}") Duration window,
+                               @Value("${trapo.login.throttle.max-failures-per-user:3}") int maxFailuresPerUser,
+                               @Value("${trapo.login.throttle.max-failures-per-client:50}") int maxFailuresPerClient,
+                               @Value("${trapo.login.throttle.max-entries:100000}") long maxEntries) {
+        this(window, maxFailuresPerUser, maxFailuresPerClient, maxEntries, System::currentTimeMillis);
+    }
 
-        failedAttempts++; // Increment counter of failed attempts
+    LoginAttemptService(Duration window, int maxFailuresPerUser, int maxFailuresPerClient, long maxEntries,
+                        LongSupplier clock) {
+        this.windowMillis = window.toMillis();
+        this.maxFailuresPerUser = maxFailuresPerUser;
+        this.maxFailuresPerClient = maxFailuresPerClient;
+        this.clock = clock;
+        this.windows = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterAccess(window.multipliedBy(2))
+                .ticker(() -> TimeUnit.MILLISECONDS.toNanos(clock.getAsLong()))
+                .build();
+    }
 
-        // Block if maximum attempts reached
-        if (failedAttempts >= MAX_ATTEMPTS) {
-            lockTime = System.currentTimeMillis() + LOCK_TIME_DURATION;
+    /**
+     * Reserves a login attempt before the password is checked. The attempt counts as a failure
+     * until {@link #registerLoginSuccess} or {@link #cancelAttempt} is called.
+     *
+     * @param username the username being logged in
+     * @param clientIp the IP address of the client
+     * @return false if the login must be refused, there were too many failures recently
+     */
+    public boolean tryAttempt(String username, String clientIp) {
+        long now = clock.getAsLong();
+        SlidingWindow user = windows.get(userKey(username, clientIp), key -> new SlidingWindow());
+        if (!user.tryRecord(now, windowMillis, maxFailuresPerUser)) {
+            return false;
         }
+        if (!windows.get(clientKey(clientIp), key -> new SlidingWindow()).tryRecord(now, windowMillis, maxFailuresPerClient)) {
+            user.release(now / windowMillis);
+            return false;
+        }
+        return true;
     }
 
-    /*
-     * Check if the user is blocked.
+    /**
+     * Gives back an attempt whose password was not checked, e.g. refused because too many
+     * passwords are being checked.
+     *
+     * @param username the username being logged in
+     * @param clientIp the IP address of the client
      */
-    public boolean isBlocked() {
-        if (lockTime == 0) return false; 
-        if (System.currentTimeMillis() > lockTime) { 
-            resetAttempts(); 
-            return false;
+    public void cancelAttempt(String username, String clientIp) {
+        long window = clock.getAsLong() / windowMillis;
+        release(userKey(username, clientIp), window);
+        release(clientKey(clientIp), window);
+    }
+
+    /**
+     * Forgets the failures of a user from a client once it logs in, and gives back the attempt
+     * of the login. The earlier failures of the client are kept, so logging in to one account
+     * does not allow trying others.
+     *
+     * @param username the username that logged in
+     * @param clientIp the IP address of the client
+     */
+    public void registerLoginSuccess(String username, String clientIp) {
+        windows.invalidate(userKey(username, clientIp));
+        release(clientKey(clientIp), clock.getAsLong() / windowMillis);
+    }
+
+    /**
+     * Checks whether the next login would be refused, without reserving an attempt.
+     *
+     * @param username the username being logged in
+     * @param clientIp the IP address of the client
+     * @return true if there were too many failures recently
+     */
+    boolean isBlocked(String username, String clientIp) {
+        long now = clock.getAsLong();
+        return exceeds(windows.getIfPresent(userKey(username, clientIp)), now, maxFailuresPerUser)
+                || exceeds(windows.getIfPresent(clientKey(clientIp)), now, maxFailuresPerClient);
+    }
+
+    /**
+     * @return the number of counters held, after removing the expired ones
+     */
+    long size() {
+        windows.cleanUp();
+        return windows.estimatedSize();
+    }
+
+    private boolean exceeds(SlidingWindow window, long now, int maxFailures) {
+        return window != null && window.estimate(now, windowMillis) >= maxFailures;
+    }
+
+    private void release(String key, long window) {
+        SlidingWindow slidingWindow = windows.getIfPresent(key);
+        if (slidingWindow != null) {
+            slidingWindow.release(window);
         }
-        return true; 
     }
 
-    // Reset the failed attempts and lock time
-    public void resetAttempts() {
-        failedAttempts = 0;
-        lockTime = 0;
+    private static String userKey(String username, String clientIp) {
+        // Usernames are matched case-insensitively by the database
+        String name = username != null ? username.toLowerCase(Locale.ROOT) : "";
+        return "user:" + clientIp + ":" + name;
+    }
+
+    private static String clientKey(String clientIp) {
+        return "client:" + clientIp;
     }
 
-    // Get the number of failed attempts
-    public int getFailedAttempts() {
-        return failedAttempts;
+    /**
+     * Failures of the current and the previous window, packed in a single long so they are
+     * updated with a CAS: the window number in the high 32 bits, then the previous and the
+     * current count in 16 bits each. The failures in the last window length are estimated as
+     * the current count plus the share of the previous one that is still inside it.
+     */
+    static final class SlidingWindow {
+
+        private static final long MAX_COUNT = 0xFFFF;
+
+        private final AtomicLong state = new AtomicLong();
+
+        /**
+         * Counts an attempt unless the limit is already reached, checking and counting in the same CAS.
+         *
+         * @return false if the attempt was refused and not counted
+         */
+        boolean tryRecord(long now, long windowMillis, int max) {
+            long window = now / windowMillis;
+            long current;
+            long updated;
+            do {
+                current = state.get();
+                long rolled = roll(current, window);
+                if (estimate(rolled, now, windowMillis) >= max) {
+                    return false;
+                }
+                updated = count(rolled) < MAX_COUNT ? rolled + 1 : rolled;
+            } while (!state.compareAndSet(current, updated));
+            return true;
+        }
+
+        /**
+         * Uncounts an attempt recorded in the given window. Once that window has ended the attempt
+         * is left in the previous count, where it decays anyway.
+         */
+        void release(long window) {
+            long current;
+            do {
+                current = state.get();
+                if ((int) (current >>> 32) != (int) window || count(current) == 0) {
+                    return;
+                }
+            } while (!state.compareAndSet(current, current - 1));
+        }
+
+        double estimate(long now, long windowMillis) {
+            return estimate(roll(state.get(), now / windowMillis), now, windowMillis);
+        }
+
+        private static double estimate(long rolled, long now, long windowMillis) {
+            double elapsed = (double) (now % windowMillis) / windowMillis;
+            return previous(rolled) * (1 - elapsed) + count(rolled);
+        }
+
+        /**
+         * Moves a state to the given window: the current count becomes the previous one if the
+         * window just ended, and both are dropped if it ended longer ago.
+         */
+        private static long roll(long state, long window) {
+            int stateWindow = (int) (state >>> 32);
+            int distance = (int) window - stateWindow;
+            if (distance == 0) {
+                return state;
+            }
+            long previous = distance == 1 ? count(state) : 0;
+            return ((long) (int) window << 32) | (previous << 16);
+        }
+
+        private static long previous(long state) {
+            return (state >>> 16) & MAX_COUNT;
+        }
+
+        private static long count(long state) {
+            return state & MAX_COUNT;
+        }
     }
-}
\ No newline at end of file
+}
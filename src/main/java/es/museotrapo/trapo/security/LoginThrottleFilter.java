@@ -0,0 +1,43 @@
+package es.museotrapo.trapo.security;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Refuses form logins of users and clients with too many recent failures before their password
+ * is checked. The logins that go through reserve an attempt, which the login handlers give back
+ * on success or when the password could not be checked.
+ */
+public class LoginThrottleFilter extends OncePerRequestFilter {
+
+    private final LoginAttemptService loginAttemptService;
+
+    /**
+     * Constructor for LoginThrottleFilter.
+     *
+     * @param loginAttemptService the LoginAttemptService counting failed logins
+     */
+    public LoginThrottleFilter(LoginAttemptService loginAttemptService) {
+        this.loginAttemptService = loginAttemptService;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"POST".equals(request.getMethod()) || !"/login".equals(request.getServletPath());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (!loginAttemptService.tryAttempt(request.getParameter("username"), request.getRemoteAddr())) {
+            response.sendRedirect("/loginerror?blocked");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+}
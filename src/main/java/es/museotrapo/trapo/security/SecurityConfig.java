@@ -1,12 +1,19 @@
 package es.museotrapo.trapo.security;
 
+import es.museotrapo.trapo.exceptions.PasswordCheckOverloadedException;
 import es.museotrapo.trapo.security.jwt.JwtRequestFilter;
 import es.museotrapo.trapo.security.jwt.UnauthorizedHandlerJwt;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
@@ -14,12 +21,20 @@ import org.springframework.security.config.annotation.authentication.configurati
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.authentication.AuthenticationFailureHandler;
+import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+import org.springframework.security.web.authentication.SimpleUrlAuthenticationFailureHandler;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
+import java.io.IOException;
+
 @Configuration
 @EnableWebSecurity
 public class SecurityConfig {
@@ -32,9 +47,24 @@ public class SecurityConfig {
     @Autowired
     private UnauthorizedHandlerJwt unauthorizedHandlerJwt;
 
+    @Autowired
+    private LoginAttemptService loginAttemptService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${trapo.login.password.threads:0}")
+    private int passwordThreads;
+
+    @Value("${trapo.login.password.queue:32}")
+    private int passwordQueue;
+
+    /**
+     * BCrypt, with passwords checked on a bounded pool so a login flood cannot take every request thread.
+     */
     @Bean
     public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        return new BoundedPasswordEncoder(new BCryptPasswordEncoder(), meterRegistry, passwordThreads, passwordQueue);
     }
 
     @Bean
@@ -72,16 +102,20 @@ public class SecurityConfig {
                 .requestMatchers(HttpMethod.POST, "/api/artists").hasRole("USER")
                 .requestMatchers(HttpMethod.PUT, "/api/artists/{id}").hasRole("USER") 
                 .requestMatchers(HttpMethod.DELETE, "/api/artists/{id}").hasRole("ADMIN")
+                .requestMatchers(HttpMethod.GET, "/api/artists/{id}/deletion").hasRole("ADMIN")
                 // PICTURE ENDPOINTS
                 .requestMatchers(HttpMethod.GET, "/api/pictures").permitAll()
                 .requestMatchers(HttpMethod.GET, "/api/pictures/{id}").permitAll()
                 .requestMatchers(HttpMethod.GET, "/api/pictures/{id}/image").permitAll()
                 .requestMatchers(HttpMethod.GET, "/api/pictures/{id}/comments").permitAll()
+                .requestMatchers(HttpMethod.GET, "/api/pictures/{id}/tiles").permitAll()
+                .requestMatchers(HttpMethod.GET, "/api/pictures/{id}/tiles/{level}/{x}/{y}").permitAll()
                 .requestMatchers(HttpMethod.POST, "/api/pictures").hasRole("USER")
                 .requestMatchers(HttpMethod.POST, "/api/pictures/{id}/comments").hasRole("USER")
                 .requestMatchers(HttpMethod.POST, "/api/pictures/{id}/likes").hasRole("USER")
                 .requestMatchers(HttpMethod.GET, "/api/pictures/{id}/image").hasRole("USER")
                 .requestMatchers(HttpMethod.POST, "/api/pictures/{id}/image").hasRole("USER")
+                .requestMatchers("/api/pictures/{id}/uploads/**").hasRole("USER")
                 .requestMatchers(HttpMethod.DELETE, "/api/pictures/{id}").hasRole("ADMIN")
                 .requestMatchers(HttpMethod.DELETE, "/api/pictures/{id}/comments/{commentId}").hasRole("USER")
 
@@ -126,12 +160,14 @@ public class SecurityConfig {
                                 .requestMatchers("/cuadro.jpg").permitAll()
                                 .requestMatchers("/pictures/{id}/{imageFile}").permitAll()
                                 .requestMatchers("/pictures/{id}").permitAll()
+                                .requestMatchers(HttpMethod.GET, "/pictures/{id}/comments").permitAll()
                                 .requestMatchers("/css/**").permitAll()
                                 .requestMatchers("/artists/{id}").permitAll()
                                 .requestMatchers("/js/**").permitAll()
                                 .requestMatchers("/error").permitAll()
                                 .requestMatchers("/milogo.png").permitAll()
                                 .requestMatchers("/register").permitAll()
+                                .requestMatchers("/loginerror").permitAll()
                                 .requestMatchers("/favicon.ico").permitAll()
                                 .requestMatchers("/pictures").permitAll()
                                 .requestMatchers("/artists").permitAll()
@@ -152,12 +188,13 @@ public class SecurityConfig {
                                 .requestMatchers("/pictures/{id}/comments/new").hasAnyRole("ADMIN", "USER")
                                 .requestMatchers("/pictures/{id}/comments/{commentId}/delete").hasAnyRole("ADMIN", "USER")
                                 .requestMatchers("/logout").hasAnyRole("ADMIN", "USER")
+                                .requestMatchers("/actuator/**").hasAnyRole("ADMIN")
 
                 )
                 .formLogin(formLogin -> formLogin
                         .loginPage("/login")
-                        .failureUrl("/loginerror")
-                        .defaultSuccessUrl("/")
+                        .failureHandler(loginFailureHandler())
+                        .successHandler(loginSuccessHandler())
                         .permitAll()
                 )
                 .logout(logout -> logout
@@ -165,7 +202,47 @@ public class SecurityConfig {
                         .logoutSuccessUrl("/")
                         .permitAll()
                 );
+        //Refuse form logins with too many recent failures before checking the password
+        http.addFilterBefore(new LoginThrottleFilter(loginAttemptService), UsernamePasswordAuthenticationFilter.class);
         //http.exceptionHandling(exceptionHandling -> exceptionHandling.accessDeniedHandler((request, response, accessDeniedException) -> response.sendRedirect("/error")));
         return http.build();
     }
+
+    /**
+     * Shows the login error page. The failure was already counted when LoginThrottleFilter reserved
+     * the attempt. Logins refused because too many passwords are being checked give their attempt
+     * back, and get a 503.
+     */
+    private AuthenticationFailureHandler loginFailureHandler() {
+        return new SimpleUrlAuthenticationFailureHandler("/loginerror") {
+            @Override
+            public void onAuthenticationFailure(HttpServletRequest request, HttpServletResponse response,
+                                                AuthenticationException exception) throws IOException, ServletException {
+                if (exception instanceof PasswordCheckOverloadedException) {
+                    loginAttemptService.cancelAttempt(request.getParameter("username"), request.getRemoteAddr());
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exception.getMessage());
+                    return;
+                }
+                super.onAuthenticationFailure(request, response, exception);
+            }
+        };
+    }
+
+    /**
+     * Forgets the failed form logins of the user from its client, including the attempt reserved by
+     * LoginThrottleFilter, then goes to the saved request or home.
+     */
+    private AuthenticationSuccessHandler loginSuccessHandler() {
+        SavedRequestAwareAuthenticationSuccessHandler handler = new SavedRequestAwareAuthenticationSuccessHandler() {
+            @Override
+            public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response,
+                                                Authentication authentication) throws IOException, ServletException {
+                loginAttemptService.registerLoginSuccess(request.getParameter("username"), request.getRemoteAddr());
+                super.onAuthenticationSuccess(request, response, authentication);
+            }
+        };
+        handler.setDefaultTargetUrl("/");
+        return handler;
+    }
 }
@@ -0,0 +1,189 @@
+package es.museotrapo.trapo.security.jwt;
+
+import io.jsonwebtoken.Jwts.SIG;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Signing keys kept in a file shared by all the nodes, e.g. on a common volume.
+ * The file lists one key per line, newest first, as "id createdAt base64Secret".
+ * Every node re-reads it periodically, and whichever node first finds the newest key older than
+ * the rotation interval adds a new one, under a file lock so two nodes never rotate at once.
+ * Only the newest keys are kept: with the default of two, tokens are verified with the current
+ * and the previous key, so the rotation interval must not be shorter than the life of a refresh token.
+ */
+@Component
+public class FileKeyring implements SigningKeySource {
+
+    private static final Logger log = LoggerFactory.getLogger(FileKeyring.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final Path file;
+    private final Path lockFile;
+    private final Duration rotationInterval;
+    private final int retainedKeys;
+
+    // Replaced as a whole, so a request never sees a half-updated keyring
+    private volatile Keys keys;
+
+    public FileKeyring(@Value("${trapo.jwt.keys.file:keys/jwt-keyring}") String file,
+                       @Value("${trapo.jwt.keys.rotation-interval:P7D}") Duration rotationInterval,
+                       @Value("${trapo.jwt.keys.retained:2}") int retainedKeys) throws IOException {
+        if (retainedKeys < 1) {
+            throw new IllegalArgumentException("At least one signing key must be retained");
+        }
+        this.file = Paths.get(file).toAbsolutePath().normalize();
+        this.lockFile = this.file.resolveSibling(this.file.getFileName() + ".lock");
+        this.rotationInterval = rotationInterval;
+        this.retainedKeys = retainedKeys;
+        Files.createDirectories(this.file.getParent());
+        update(false); // Creates the first key if the keyring is new
+    }
+
+    @Override
+    public SigningKey signingKey() {
+        return keys.current();
+    }
+
+    @Override
+    public SecretKey verificationKey(String keyId) {
+        return keyId != null ? keys.byId().get(keyId) : null;
+    }
+
+    /**
+     * Picks up keys added by other nodes and rotates the current key once it is due.
+     */
+    @Scheduled(fixedDelayString = "${trapo.jwt.keys.check-interval:PT1M}")
+    public void refresh() {
+        try {
+            List<SigningKey> stored = read();
+            if (!stored.isEmpty() && !ids(stored).equals(ids(keys.all()))) {
+                keys = new Keys(stored);
+                log.info("Reloaded JWT signing keys, current key is {}", stored.get(0).id());
+            }
+            if (isDue(keys.current())) {
+                update(false);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not refresh the JWT signing keys from {}", file, e);
+        }
+    }
+
+    /**
+     * Adds a new current key right away, retiring the oldest one if the keyring is full.
+     *
+     * @throws IOException if the keyring cannot be written
+     */
+    public void rotate() throws IOException {
+        update(true);
+    }
+
+    /**
+     * Re-reads the keyring under the file lock and adds a new key if forced, if it has none or
+     * if its newest key is due, so a rotation made meanwhile by another node is not repeated.
+     */
+    private synchronized void update(boolean force) throws IOException {
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            List<SigningKey> stored = read();
+            if (force || stored.isEmpty() || isDue(stored.get(0))) {
+                List<SigningKey> updated = new ArrayList<>(retainedKeys);
+                updated.add(new SigningKey(UUID.randomUUID().toString(), Instant.now(), SIG.HS256.key().build()));
+                updated.addAll(stored.subList(0, Math.min(stored.size(), retainedKeys - 1)));
+                write(updated);
+                stored = updated;
+                log.info("Rotated JWT signing keys, current key is {}", updated.get(0).id());
+            }
+            keys = new Keys(stored);
+        }
+    }
+
+    private boolean isDue(SigningKey key) {
+        return key.createdAt().plus(rotationInterval).isBefore(Instant.now());
+    }
+
+    private List<SigningKey> read() throws IOException {
+        if (!Files.exists(file)) {
+            return List.of();
+        }
+        List<SigningKey> stored = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 3) {
+                throw new IllegalStateException("Malformed line in keyring " + file);
+            }
+            SecretKey secret = new SecretKeySpec(Base64.getDecoder().decode(fields[2]), ALGORITHM);
+            stored.add(new SigningKey(fields[0], Instant.parse(fields[1]), secret));
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the keyring to a scratch file first, so nodes reading it never see a partial one.
+     */
+    private void write(List<SigningKey> keys) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (SigningKey key : keys) {
+            content.append(key.id()).append(' ').append(key.createdAt()).append(' ')
+                    .append(Base64.getEncoder().encodeToString(key.key().getEncoded())).append('\n');
+        }
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".part");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                log.debug("Cannot restrict the permissions of {}", temp);
+            }
+            Files.writeString(temp, content, StandardCharsets.US_ASCII);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static List<String> ids(List<SigningKey> keys) {
+        return keys.stream().map(SigningKey::id).toList();
+    }
+
+    /**
+     * The keys of the keyring, newest first, and an index of them by key ID.
+     */
+    private record Keys(List<SigningKey> all, Map<String, SecretKey> byId) {
+
+        Keys(List<SigningKey> all) {
+            this(List.copyOf(all), all.stream().collect(Collectors.toUnmodifiableMap(SigningKey::id, SigningKey::key)));
+        }
+
+        SigningKey current() {
+            return all.get(0);
+        }
+    }
+}
@@ -1,14 +1,19 @@
 package es.museotrapo.trapo.security.jwt;
 
 
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
@@ -16,27 +21,38 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 @Component
 public class JwtRequestFilter extends OncePerRequestFilter {
     private static final Logger log = LoggerFactory.getLogger(JwtRequestFilter.class);
     private final UserDetailsService userDetailsService;
     private final JwtTokenProvider jwtTokenProvider;
+    private final TokenDenyList tokenDenyList;
+    private final boolean stateless;
 
     /**
      * Constructor for JwtRequestFilter.
      *
      * @param userDetailsService the UserDetailsService to load user details
      * @param jwtTokenProvider   the JwtTokenProvider to validate JWT tokens
+     * @param tokenDenyList      the TokenDenyList of revoked tokens
+     * @param stateless          whether users are built from the token claims instead of being loaded
      */
-    public JwtRequestFilter(UserDetailsService userDetailsService, JwtTokenProvider jwtTokenProvider) {
+    public JwtRequestFilter(UserDetailsService userDetailsService, JwtTokenProvider jwtTokenProvider,
+                            TokenDenyList tokenDenyList, @Value("${trapo.jwt.stateless:true}") boolean stateless) {
         this.userDetailsService = userDetailsService;
         this.jwtTokenProvider = jwtTokenProvider;
+        this.tokenDenyList = tokenDenyList;
+        this.stateless = stateless;
     }
 
     /**
      * This method is called for every request to check if the JWT token is valid.
      * If valid, it sets the authentication in the security context.
+     * In stateless mode the user and its roles are taken from the verified claims of the token,
+     * so authenticated requests do not read the database.
      *
      * @param request     the HTTP request
      * @param response    the HTTP response
@@ -48,7 +64,11 @@ public class JwtRequestFilter extends OncePerRequestFilter {
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
         try {
             var claims = this.jwtTokenProvider.validateToken(request, true);
-            var userDetails = this.userDetailsService.loadUserByUsername(claims.getSubject());
+            if (this.tokenDenyList.isDenied(claims.getId())) {
+                throw new IllegalArgumentException("Token has been revoked");
+            }
+            var userDetails = this.stateless ? userFromClaims(claims)
+                    : this.userDetailsService.loadUserByUsername(claims.getSubject());
             UsernamePasswordAuthenticationToken authentication = new UsernamePasswordAuthenticationToken(
                     userDetails, (Object)null, userDetails.getAuthorities());
             authentication.setDetails((new WebAuthenticationDetailsSource()).buildDetails(request));
@@ -61,4 +81,26 @@ public class JwtRequestFilter extends OncePerRequestFilter {
 
         filterChain.doFilter(request, response);
     }
+
+    /**
+     * Builds the user of a request from the claims of its access token.
+     *
+     * @param claims the verified claims
+     * @return the user, with the roles it had when the token was issued
+     */
+    private static UserDetails userFromClaims(Claims claims) {
+        if (!TokenType.ACCESS.name().equals(claims.get("type", String.class))) {
+            throw new IllegalArgumentException("Not an access token");
+        }
+        List<?> roles = claims.get("roles", List.class);
+        if (roles == null) {
+            throw new IllegalArgumentException("Token has no roles claim");
+        }
+        List<GrantedAuthority> authorities = new ArrayList<>(roles.size());
+        for (Object role : roles) {
+            authorities.add(new SimpleGrantedAuthority((String) role));
+        }
+        // The password is never needed once the token is verified
+        return new User(claims.getSubject(), "", authorities);
+    }
 }
@@ -2,23 +2,52 @@ package es.museotrapo.trapo.security.jwt;
 
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.Jwts.SIG;
-import io.jsonwebtoken.security.SecretKeyBuilder;
+import io.jsonwebtoken.LocatorAdapter;
+import io.jsonwebtoken.UnsupportedJwtException;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
+import java.security.Key;
 import java.util.Date;
+import java.util.List;
+import java.util.UUID;
 import javax.crypto.SecretKey;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
 @Component
 public class JwtTokenProvider {
 
-    private final SecretKey jwtSecret = SIG.HS256.key().build();
-    private final JwtParser jwtParser = Jwts.parser().verifyWith(jwtSecret).build();
+    private final SigningKeySource signingKeySource;
+    private final JwtParser jwtParser;
+    private final VerifiedTokenCache verifiedTokenCache;
+
+    /**
+     * Constructor for JwtTokenProvider.
+     * A single parser is built for all the keys: it picks the verification key by the kid header
+     * of each token, so rotating keys never builds a parser while serving a request.
+     *
+     * @param signingKeySource   the SigningKeySource of the keys that sign and verify tokens
+     * @param verifiedTokenCache the VerifiedTokenCache of the claims of recently verified tokens
+     */
+    public JwtTokenProvider(SigningKeySource signingKeySource, VerifiedTokenCache verifiedTokenCache) {
+        this.signingKeySource = signingKeySource;
+        this.verifiedTokenCache = verifiedTokenCache;
+        this.jwtParser = Jwts.parser().keyLocator(new LocatorAdapter<Key>() {
+            @Override
+            protected Key locate(JwsHeader header) {
+                SecretKey key = signingKeySource.verificationKey(header.getKeyId());
+                if (key == null) {
+                    throw new UnsupportedJwtException("Unknown signing key: " + header.getKeyId());
+                }
+                return key;
+            }
+        }).build();
+    }
 
     /**
      * Enum representing the type of token (ACCESS or REFRESH) and its duration.
@@ -78,14 +107,34 @@ public class JwtTokenProvider {
 
     /**
      * Validates the JWT token and extracts the claims.
+     * Tokens verified recently are answered from the VerifiedTokenCache until they expire.
      *
      * @param token The JWT token string
      * @return The claims extracted from the token
      */
     public Claims validateToken(String token) {
+        return this.verifiedTokenCache.get(token, this::verifyToken);
+    }
+
+    /**
+     * Checks the signature and expiration of the JWT token and parses its claims.
+     *
+     * @param token The JWT token string
+     * @return The claims extracted from the token
+     */
+    private Claims verifyToken(String token) {
         return (Claims)this.jwtParser.parseSignedClaims(token).getPayload();
     }
 
+    /**
+     * Forgets a verified token, so it is checked again if it is ever presented.
+     *
+     * @param token The JWT token string
+     */
+    public void forgetToken(String token) {
+        this.verifiedTokenCache.invalidate(token);
+    }
+
     /**
      * Enum representing the type of token (ACCESS or REFRESH) and its duration.
      */
@@ -107,7 +156,30 @@ public class JwtTokenProvider {
     private JwtBuilder buildToken(TokenType tokenType, UserDetails userDetails) {
         Date currentDate = new Date();
         Date expiryDate = Date.from((new Date()).toInstant().plus(tokenType.duration));
-        return Jwts.builder().claim("roles", userDetails.getAuthorities()).claim("type", tokenType.name()).subject(userDetails.getUsername()).issuedAt(currentDate).expiration(expiryDate).signWith(this.jwtSecret);
+        // Roles as plain names, so a request can be authenticated from the token alone
+        List<String> roles = userDetails.getAuthorities().stream().map(GrantedAuthority::getAuthority).toList();
+        // The key ID tells every node which of the keys in the keyring verifies the token
+        SigningKey signingKey = this.signingKeySource.signingKey();
+        return Jwts.builder().header().keyId(signingKey.id()).and().id(UUID.randomUUID().toString()).claim("roles", roles).claim("type", tokenType.name()).subject(userDetails.getUsername()).issuedAt(currentDate).expiration(expiryDate).signWith(signingKey.key());
+    }
+
+    /**
+     * Extracts a token from the cookies in the request, if there is one.
+     *
+     * @param request The HTTP request containing the cookies
+     * @param type    The type of the token
+     * @return The token string, or null
+     */
+    public String tokenFromCookies(HttpServletRequest request, TokenType type) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (type.cookieName.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
     }
 }
 
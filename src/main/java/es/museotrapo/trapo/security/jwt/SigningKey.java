@@ -0,0 +1,17 @@
+package es.museotrapo.trapo.security.jwt;
+
+import javax.crypto.SecretKey;
+import java.time.Instant;
+
+/**
+ * HMAC key used to sign JWTs, named by the key ID (kid) written in the header of the tokens it signs.
+ *
+ * @param id        key ID, unique within a keyring
+ * @param createdAt when the key was generated, used to decide when to rotate it
+ * @param key       the HS256 secret
+ */
+public record SigningKey(
+        String id,
+        Instant createdAt,
+        SecretKey key) {
+}
@@ -0,0 +1,25 @@
+package es.museotrapo.trapo.security.jwt;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Where the keys that sign and verify JWTs come from. All the nodes of a cluster must read the
+ * same keys, so a token issued by one node is accepted by every other.
+ * Tokens are signed with the current key only, and verified with any key still in the source,
+ * so rotating keys does not invalidate the tokens already issued.
+ */
+public interface SigningKeySource {
+
+    /**
+     * @return the key new tokens are signed with
+     */
+    SigningKey signingKey();
+
+    /**
+     * Looks up a key accepted to verify tokens.
+     *
+     * @param keyId the key ID (kid) in the header of a token
+     * @return the key, or null if it is unknown or has been retired
+     */
+    SecretKey verificationKey(String keyId);
+}
@@ -0,0 +1,59 @@
+package es.museotrapo.trapo.security.jwt;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Revoked JWTs, by token ID (jti). Tokens are self-contained and checked without reading the
+ * database, so logging out only stops a token from working if it is listed here until it expires.
+ * Entries are dropped once their token has expired, since the signature check rejects it anyway,
+ * so the list never holds more than the tokens revoked during the lifetime of a refresh token.
+ */
+@Component
+public class TokenDenyList {
+
+    // Expiry time in milliseconds by token ID
+    private final Map<String, Long> denied = new ConcurrentHashMap<>();
+
+    /**
+     * Revokes a token until it expires.
+     *
+     * @param tokenId    the ID (jti) of the token
+     * @param expiration the expiration of the token
+     */
+    public void deny(String tokenId, Date expiration) {
+        if (tokenId != null && expiration != null && expiration.getTime() > System.currentTimeMillis()) {
+            denied.put(tokenId, expiration.getTime());
+        }
+    }
+
+    /**
+     * Checks whether a token has been revoked.
+     *
+     * @param tokenId the ID (jti) of the token
+     * @return true if the token must not be accepted
+     */
+    public boolean isDenied(String tokenId) {
+        return tokenId != null && denied.containsKey(tokenId);
+    }
+
+    /**
+     * Forgets revoked tokens that have expired.
+     */
+    @Scheduled(fixedDelayString = "${trapo.jwt.deny-list.cleanup-interval:PT1M}")
+    public void removeExpired() {
+        long now = System.currentTimeMillis();
+        denied.values().removeIf(expiration -> expiration <= now);
+    }
+
+    /**
+     * @return the number of revoked tokens that have not expired yet
+     */
+    public int size() {
+        return denied.size();
+    }
+}
@@ -4,6 +4,7 @@ import es.museotrapo.trapo.security.LoginAttemptService;
 import es.museotrapo.trapo.security.jwt.AuthResponse.Status;
 import io.jsonwebtoken.Claims;
 import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,7 @@ public class UserLogingService {
     private final AuthenticationManager authenticationManager;
     private final UserDetailsService userDetailsService;
     private final JwtTokenProvider jwtTokenProvider;
+    private final TokenDenyList tokenDenyList;
 
     /**
      * Constructor for UserLogingService.
@@ -32,11 +34,14 @@ public class UserLogingService {
      * @param authenticationManager the AuthenticationManager to authenticate users
      * @param userDetailsService    the UserDetailsService to load user details
      * @param jwtTokenProvider      the JwtTokenProvider to generate and validate JWT tokens
+     * @param tokenDenyList         the TokenDenyList where the tokens of logged out users are revoked
      */
-    public UserLogingService(AuthenticationManager authenticationManager, UserDetailsService userDetailsService, JwtTokenProvider jwtTokenProvider) {
+    public UserLogingService(AuthenticationManager authenticationManager, UserDetailsService userDetailsService,
+                             JwtTokenProvider jwtTokenProvider, TokenDenyList tokenDenyList) {
         this.authenticationManager = authenticationManager;
         this.userDetailsService = userDetailsService;
         this.jwtTokenProvider = jwtTokenProvider;
+        this.tokenDenyList = tokenDenyList;
     }
 
     /**
@@ -70,6 +75,9 @@ public class UserLogingService {
     public ResponseEntity<AuthResponse> refresh(HttpServletResponse response, String refreshToken) {
         try {
             Claims claims = this.jwtTokenProvider.validateToken(refreshToken);
+            if (this.tokenDenyList.isDenied(claims.getId())) {
+                throw new IllegalArgumentException("Refresh token has been revoked");
+            }
             UserDetails user = this.userDetailsService.loadUserByUsername(claims.getSubject());
             String newAccessToken = this.jwtTokenProvider.generateAccessToken(user);
             response.addCookie(this.buildTokenCookie(TokenType.ACCESS, newAccessToken));
@@ -84,11 +92,16 @@ public class UserLogingService {
 
     /**
      * Logs out the user by clearing the security context and removing the cookies.
+     * Its tokens are revoked, so copies of them stop working too.
      *
+     * @param request  the HTTP request holding the token cookies
      * @param response the HTTP response to set the cookies
      * @return a message indicating successful logout
      */
-    public String logout(HttpServletResponse response) {
+    public String logout(HttpServletRequest request, HttpServletResponse response) {
+        for (TokenType type : TokenType.values()) {
+            this.revoke(this.jwtTokenProvider.tokenFromCookies(request, type));
+        }
         SecurityContextHolder.clearContext();
         response.addCookie(this.removeTokenCookie(TokenType.ACCESS));
         response.addCookie(this.removeTokenCookie(TokenType.REFRESH));
@@ -96,10 +109,31 @@ public class UserLogingService {
     }
 
     /**
-     * Handles login attempts and tracks failed attempts.
+     * Adds a token to the deny list until it expires and drops it from the cache of verified
+     * tokens. Invalid or expired tokens are ignored.
      *
-     * @param loginRequest the login request containing username and password
-     * @return a ResponseEntity containing the authentication response
+     * @param token the token to revoke, may be null
+     */
+    private void revoke(String token) {
+        if (token == null || token.isEmpty()) {
+            return;
+        }
+        try {
+            Claims claims = this.jwtTokenProvider.validateToken(token);
+            this.tokenDenyList.deny(claims.getId(), claims.getExpiration());
+        } catch (Exception e) {
+            log.debug("Ignoring invalid token on logout", e);
+        } finally {
+            this.jwtTokenProvider.forgetToken(token);
+        }
+    }
+
+    /**
+     * Builds an HTTP-only cookie holding a token.
+     *
+     * @param type  the type of token (ACCESS or REFRESH)
+     * @param token the token
+     * @return the cookie
      */
     private Cookie buildTokenCookie(TokenType type, String token) {
         Cookie cookie = new Cookie(type.cookieName, token);
@@ -0,0 +1,129 @@
+package es.museotrapo.trapo.security.jwt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Claims of recently verified JWTs, by SHA-256 digest of the token.
+ * A browser sends the same access cookie with every request, so after the first one the signature
+ * check and the parsing of the claims are skipped until the token expires. Entries never outlive
+ * the expiration of their token, the cache is bounded by a number of tokens and only digests are
+ * kept, never the tokens themselves. A maximum size of 0 disables it.
+ */
+@Component
+public class VerifiedTokenCache {
+
+    private final Cache<String, Claims> cache;
+
+    @Autowired
+    public VerifiedTokenCache(MeterRegistry meterRegistry,
+                              @Value("${trapo.jwt.token-cache.max-size:10000}") long maxSize) {
+        this(meterRegistry, maxSize, Ticker.systemTicker());
+    }
+
+    VerifiedTokenCache(MeterRegistry meterRegistry, long maxSize, Ticker ticker) {
+        if (maxSize <= 0) {
+            this.cache = null;
+            return;
+        }
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new UntilExpiration())
+                .ticker(ticker)
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "verifiedTokens");
+    }
+
+    /**
+     * Returns the claims of a token, verifying it only if it is not cached.
+     *
+     * @param token    the JWT token string
+     * @param verifier checks the signature of the token and parses its claims, failing if it is invalid
+     * @return the claims of the token
+     */
+    public Claims get(String token, Function<String, Claims> verifier) {
+        if (cache == null) {
+            return verifier.apply(token);
+        }
+        // Invalid tokens make the verifier throw, so they are never cached
+        return cache.get(digest(token), digest -> verifier.apply(token));
+    }
+
+    /**
+     * Forgets a token, so it is verified again the next time it is seen.
+     *
+     * @param token the JWT token string
+     */
+    public void invalidate(String token) {
+        if (cache != null && token != null) {
+            cache.invalidate(digest(token));
+        }
+    }
+
+    /**
+     * @return the share of lookups answered from the cache, 0 if it is disabled or was never used
+     */
+    public double hitRate() {
+        return cache != null ? cache.stats().hitRate() : 0;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long hitCount() {
+        return cache != null ? cache.stats().hitCount() : 0;
+    }
+
+    /**
+     * Keeps an entry until the expiration of its token. Reading it does not extend its life.
+     */
+    private static class UntilExpiration implements Expiry<String, Claims> {
+
+        @Override
+        public long expireAfterCreate(String digest, Claims claims, long currentTime) {
+            Date expiration = claims.getExpiration();
+            if (expiration == null) {
+                return 0; // Not cached: nothing bounds how long the token would stay valid
+            }
+            long remaining = expiration.getTime() - System.currentTimeMillis();
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remaining));
+        }
+
+        @Override
+        public long expireAfterUpdate(String digest, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+        @Override
+        public long expireAfterRead(String digest, Claims claims, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+
+    private static String digest(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
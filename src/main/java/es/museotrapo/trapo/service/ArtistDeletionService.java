@@ -0,0 +1,222 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.ArtistDeletionDTO;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.repository.ArtistRepository;
+import es.museotrapo.trapo.repository.CommentRepository;
+import es.museotrapo.trapo.repository.PictureLikeRepository;
+import es.museotrapo.trapo.repository.PictureRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes artists in the background, together with their whole catalog.
+ * Pictures are removed a batch at a time, each batch in its own short transaction with one
+ * set-based DELETE for their likes, one for their comments and one for the pictures themselves,
+ * so neither the comments, the likes nor the images of the pictures are ever loaded, and an artist
+ * with thousands of works never holds locks for long. The artist row itself is deleted while
+ * locked, after a last sweep of the pictures added during the deletion. The image files of the deleted pictures are
+ * released batch by batch, and the progress of the deletion can be polled.
+ */
+@Service
+public class ArtistDeletionService {
+
+    private static final Logger log = LoggerFactory.getLogger(ArtistDeletionService.class);
+
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    @Autowired
+    private ArtistRepository artistRepository;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureLikeRepository pictureLikeRepository;
+
+    @Autowired
+    private CommentRepository commentRepository;
+
+    @Autowired
+    private ImageReferenceService imageReferenceService;
+
+    @Autowired
+    private HotImageCache hotImageCache;
+
+    private final TransactionTemplate transaction;
+    private final int batchSize;
+    private final Duration retention;
+    private final ThreadPoolExecutor executor;
+    // Deletions by artist ID, kept for a while once finished so their outcome can be read
+    private final Map<Long, DeletionJob> jobs = new ConcurrentHashMap<>();
+
+    public ArtistDeletionService(PlatformTransactionManager transactionManager,
+                                 @Value("${trapo.artists.deletion.batch-size:200}") int batchSize,
+                                 @Value("${trapo.artists.deletion.queue:100}") int queueCapacity,
+                                 @Value("${trapo.artists.deletion.retention:PT1H}") Duration retention) {
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.retention = retention;
+        // A single thread: deletions are rare, running them one after another keeps the database load low
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "artist-deletion");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the deletion of an artist and of all its pictures. Starting it again while it is
+     * running returns the running deletion.
+     *
+     * @param artistId the ID of the artist
+     * @return the progress of the deletion
+     * @throws NoSuchElementException  if the artist does not exist
+     * @throws ResponseStatusException with 503 if too many deletions are waiting
+     */
+    public ArtistDeletionDTO startDeletion(long artistId) {
+        if (!artistRepository.existsById(artistId)) {
+            throw new NoSuchElementException("Artist not found: " + artistId);
+        }
+        DeletionJob job = new DeletionJob(artistId, pictureRepository.countByArtist(artistId));
+        DeletionJob running = jobs.compute(artistId, (id, existing) ->
+                existing != null && existing.status.equals(RUNNING) ? existing : job);
+        if (running != job) {
+            return running.toDTO();
+        }
+        try {
+            executor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(artistId, job);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many artist deletions in progress");
+        }
+        return job.toDTO();
+    }
+
+    /**
+     * Returns the progress of the deletion of an artist.
+     *
+     * @param artistId the ID of the artist
+     * @return the progress of the deletion
+     * @throws NoSuchElementException if no deletion of the artist was started recently
+     */
+    public ArtistDeletionDTO getDeletion(long artistId) {
+        DeletionJob job = jobs.get(artistId);
+        if (job == null) {
+            throw new NoSuchElementException("No deletion of artist " + artistId);
+        }
+        return job.toDTO();
+    }
+
+    private void run(DeletionJob job) {
+        try {
+            int deleted;
+            do {
+                deleted = transaction.execute(status -> deleteBatch(job.artistId));
+                job.deletedPictures += deleted;
+            } while (deleted == batchSize);
+
+            // Pictures may have been added since the last batch: with the artist row locked no more
+            // can be, so the remaining ones are deleted together with the artist
+            transaction.executeWithoutResult(status -> {
+                artistRepository.lockById(job.artistId);
+                int remaining;
+                while ((remaining = deleteBatch(job.artistId)) > 0) {
+                    job.deletedPictures += remaining;
+                }
+                artistRepository.deleteByIdCustom(job.artistId);
+            });
+            job.finish(DONE);
+            log.info("Deleted artist {} and its {} pictures", job.artistId, job.deletedPictures);
+        } catch (RuntimeException e) {
+            // The batches already deleted stay deleted, starting again resumes with the remaining pictures
+            job.finish(FAILED);
+            log.warn("Could not delete artist {} after {} pictures", job.artistId, job.deletedPictures, e);
+        }
+    }
+
+    /**
+     * Deletes the next batch of pictures of an artist.
+     *
+     * @return the number of pictures deleted, less than the batch size for the last one
+     */
+    private int deleteBatch(long artistId) {
+        List<Picture> pictures = pictureRepository.findBatchByArtist(artistId, Limit.of(batchSize));
+        if (pictures.isEmpty()) {
+            return 0;
+        }
+        List<Long> ids = pictures.stream().map(Picture::getId).toList();
+        pictureLikeRepository.deleteByPictures(ids);
+        commentRepository.deleteByPictures(ids);
+        pictureRepository.deleteByIds(ids);
+        for (Picture picture : pictures) {
+            hotImageCache.invalidateOnCommit(picture.getId()); // Readers see the picture until the batch commits
+            imageReferenceService.release(picture.getStoredImage()); // Files are deleted once the batch commits
+        }
+        return pictures.size();
+    }
+
+    /**
+     * Forgets deletions finished for longer than the retention period.
+     */
+    @Scheduled(fixedDelayString = "${trapo.artists.deletion.gc-interval:PT10M}")
+    public void collectFinishedJobs() {
+        long deadline = System.currentTimeMillis() - retention.toMillis();
+        jobs.values().removeIf(job -> !job.status.equals(RUNNING) && job.finishedAt < deadline);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Progress of the deletion of an artist. Only modified by the deletion thread.
+     */
+    private static class DeletionJob {
+
+        private final long artistId;
+        private final long totalPictures;
+
+        private volatile String status = RUNNING;
+        private volatile long deletedPictures;
+        private volatile long finishedAt;
+
+        DeletionJob(long artistId, long totalPictures) {
+            this.artistId = artistId;
+            this.totalPictures = totalPictures;
+        }
+
+        void finish(String status) {
+            this.finishedAt = System.currentTimeMillis();
+            this.status = status;
+        }
+
+        ArtistDeletionDTO toDTO() {
+            return new ArtistDeletionDTO(artistId, status, deletedPictures, totalPictures);
+        }
+    }
+}
@@ -1,30 +1,36 @@
 package es.museotrapo.trapo.service;
 
 import es.museotrapo.trapo.dto.ArtistMapper;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.model.Artist;
 import es.museotrapo.trapo.repository.ArtistRepository;
 import es.museotrapo.trapo.dto.ArtistDTO;
 
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.domain.Example;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
 import java.util.Collection;
@@ -37,6 +43,9 @@ import org.springframework.http.MediaType;
 @Service // Spring annotation indicating this is a service class
 public class ArtistService {
 
+    // Maximum size of a biography file (5 MB).
+    private static final long MAX_BIOGRAPHY_BYTES = 5 * 1024 * 1024;
+
     // Injecting ArtistRepository to interact with artist data in the database.
     @Autowired
     private ArtistRepository artistRepository;
@@ -48,31 +57,43 @@ public class ArtistService {
     @Autowired
     private SanitizeService sanitizeService;
 
+    @Autowired
+    private FileServingService fileServingService;
+
     private final String biographyDir = "biographies";
 
     /**
-     * Retrieves a paginated list of ArtistDTOs.
+     * Retrieves a page of ArtistDTOs, in ID order, using keyset pagination.
      *
-     * @param pageable pagination information (e.g., page number, page size)
-     * @return a Page of ArtistDTOs
+     * @param cursor the continuation token returned with the previous page, null for the first page
+     * @param size   the maximum number of artists in the page, at most 100
+     * @return a CursorPage of ArtistDTOs
      */
-    public Page<ArtistDTO> getArtists(Pageable pageable) {
-        // Fetches the paginated list of artists from the repository and converts them to DTOs
-        Page<Artist> artistPage = artistRepository.findAll(pageable);
-        return convertToDTOPage(artistPage);
+    public CursorPage<ArtistDTO> getArtists(String cursor, int size) {
+        size = PageCursor.pageSize(size);
+        // Fetches one artist more than the page size to know whether there is a next page
+        List<Artist> artists = artistRepository.findByIdGreaterThanOrderByIdAsc(PageCursor.decode(cursor), Limit.of(size + 1));
+        return toDTOPage(PageCursor.page(artists, size, Artist::getId));
     }
 
     /**
-     * Retrieves a paginated list of ArtistDTOs based on the provided example.
+     * Retrieves a page of ArtistDTOs matching the provided example, in ID order, using keyset pagination.
      *
-     * @param example  an Example object containing the search criteria
-     * @param pageable pagination information (e.g., page number, page size)
-     * @return a Page of ArtistDTOs matching the example
+     * @param example an Example object containing the search criteria
+     * @param cursor  the continuation token returned with the previous page, null for the first page
+     * @param size    the maximum number of artists in the page, at most 100
+     * @return a CursorPage of ArtistDTOs matching the example
      */
-    public Page<ArtistDTO> getArtists(Example<Artist> example, Pageable pageable) {
-        // Fetches the paginated list of artists from the repository and converts them to DTOs
-        Page<Artist> artistPage = artistRepository.findAll(example, pageable);
-        return convertToDTOPage(artistPage);
+    public CursorPage<ArtistDTO> getArtists(Example<Artist> example, String cursor, int size) {
+        int pageSize = PageCursor.pageSize(size);
+        long after = PageCursor.decode(cursor);
+        // Spring Data adds the "id > after" condition to the example and reads one artist more than the page size
+        ScrollPosition position = after == 0 ? ScrollPosition.keyset() : ScrollPosition.forward(Map.of("id", after));
+        Window<Artist> window = artistRepository.findBy(example,
+                query -> query.sortBy(Sort.by("id")).limit(pageSize).scroll(position));
+        List<Artist> artists = window.getContent();
+        String next = window.hasNext() ? PageCursor.encode(artists.get(artists.size() - 1).getId()) : null;
+        return toDTOPage(new CursorPage<>(artists, next, window.hasNext()));
     }
 
     /**
@@ -132,41 +153,19 @@ public class ArtistService {
     }
 
     /**
-     * Deletes an artist by ID.
-     *
-     * @param id the ID of the artist to delete
-     * @return the ArtistDTO of the deleted artist
-     */
-    public ArtistDTO deleteArtist(long id) {
-        Artist artist = artistRepository.findById(id).orElseThrow();
-        ArtistDTO artistDTO = toDTO(artist);
-        artistRepository.deleteById(id);
-        return artistDTO;
-    }
-
-    /**
-     * Converts a Page of Artist entities to a Page of ArtistDTOs.
+     * Converts a CursorPage of Artist entities to a CursorPage of ArtistDTOs.
      *
-     * @param artistPage the Page of Artist entities
-     * @return a Page of ArtistDTOs
+     * @param artistPage the CursorPage of Artist entities
+     * @return a CursorPage of ArtistDTOs
      */
-    public Page<ArtistDTO> convertToDTOPage(Page<Artist> artistPage) {
-        return new PageImpl<>(
-                artistPage.getContent().stream().map(mapper::toDTO).collect(Collectors.toList()),
-                artistPage.getPageable(),
-                artistPage.getTotalElements()
+    private CursorPage<ArtistDTO> toDTOPage(CursorPage<Artist> artistPage) {
+        return new CursorPage<>(
+                artistPage.content().stream().map(mapper::toDTO).collect(Collectors.toList()),
+                artistPage.next(),
+                artistPage.hasNext()
         );
     }
 
-    /**
-     * Returns the total count of Artist entities.
-     *
-     * @return the count of artists
-     */
-    public long count() {
-        return artistRepository.count();
-    }
-
     /**
      * Saves the biography file for a specific artist by validating the file,
      * sanitizing its content and name, and ensuring it is safely stored in the designated directory.
@@ -184,10 +183,8 @@ public class ArtistService {
         Artist artist = artistRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Artist not found"));
 
-        // Validate the file's content and extension to ensure it is a valid and secure file.
-        sanitizeService.validateFileExtensionAndContent(file.getOriginalFilename(), file.getInputStream());
-
-        if(file.getSize() > 5 * 1024 * 1024){
+        // Reject oversized uploads early when the client declared their size.
+        if(file.getSize() > MAX_BIOGRAPHY_BYTES){
             throw new IllegalArgumentException("El archivo es demasiado grande");
         }
 
@@ -214,14 +211,15 @@ public class ArtistService {
             throw new SecurityException("Invalid file path. File must reside in the biography directory");
         }
 
-        // Check if a file with the same name already exists to prevent overwriting.
-        if (destinationFile.exists()) {
+        // Validate the file's content and extension while saving it to the destination directory,
+        // in a single read of the upload. The file is never overwritten if it already exists.
+        try (InputStream in = file.getInputStream()) {
+            sanitizeService.writeValidatedPdf(file.getOriginalFilename(), in, destinationFile.toPath(),
+                    MAX_BIOGRAPHY_BYTES);
+        } catch (FileAlreadyExistsException e) {
             throw new RuntimeException("There is already a file with the same name: " + originalName);
         }
 
-        // Save the file to the destination directory.
-        file.transferTo(destinationFile);
-
         // Save the file reference (absolute path) in the artist's biography field.
         artist.setBiography(biographyDir + "/" + originalName);
 
@@ -230,13 +228,16 @@ public class ArtistService {
     }
 
     /**
-     * Retrieves the biography file of an artist by its ID and returns it as a downloadable resource.
+     * Writes the biography file of an artist to the response as a downloadable PDF.
+     * Conditional requests are answered with 304 and byte ranges are supported so large
+     * downloads can be resumed.
      *
-     * @param id the ID of the artist
-     * @return ResponseEntity containing the biography file as a Resource
+     * @param id       the ID of the artist
+     * @param request  the HTTP request
+     * @param response the HTTP response the file is written to
      * @throws IOException if an error occurs while retrieving the file
      */
-    public ResponseEntity<Resource> getBiographyResponse(Long id) throws IOException {
+    public void writeBiography(Long id, HttpServletRequest request, HttpServletResponse response) throws IOException {
         Artist artist = artistRepository.findById(id).orElseThrow();
         
         // Build the path to file
@@ -253,14 +254,14 @@ public class ArtistService {
             throw new FileNotFoundException("Biography not found for artist with ID: " + id);
         }
 
-        // Create resource from file
-        Resource pdfResource = new UrlResource(path.toUri());
+        // Biography files are never overwritten, so size and modification time identify their content
+        String etag = "\"" + Long.toHexString(Files.size(path)) + "-"
+                + Long.toHexString(Files.getLastModifiedTime(path).toMillis()) + "\"";
 
-        // Build HTTP resource
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=biography_" + id + ".pdf")
-                .contentType(MediaType.APPLICATION_PDF)
-                .body(pdfResource);
+        // Send the file as an attachment, only the authenticated user may cache it
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=biography_" + id + ".pdf");
+        fileServingService.serveFile(request, response, path, MediaType.APPLICATION_PDF_VALUE, etag,
+                CacheControl.noCache().cachePrivate());
     }
 
 
@@ -2,18 +2,23 @@ package es.museotrapo.trapo.service;
 
 import es.museotrapo.trapo.dto.CommentDTO;
 import es.museotrapo.trapo.dto.CommentMapper;
+import es.museotrapo.trapo.dto.CommentSimpleDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.exceptions.UnauthorizedCommentDeleteException;
 import es.museotrapo.trapo.model.Comment;
 import es.museotrapo.trapo.model.Picture;
 import es.museotrapo.trapo.model.User;
 import es.museotrapo.trapo.repository.CommentRepository;
 import es.museotrapo.trapo.repository.PictureRepository;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Limit;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
+import java.util.List;
 
 
 /**
@@ -56,12 +61,15 @@ public class CommentService {
      * @param picId     the ID of the picture associated with the comment
      * @return the deleted CommentDTO
      */
+    @Transactional
     public CommentDTO deleteComment(Long commentId, Long picId, Authentication authentication) {
-        // Fetch the Picture and Comment entities by their respective IDs
-        Picture picture = pictureRepository.findById(picId)
-                .orElseThrow(() -> new RuntimeException("Picture not found."));
+        // Fetch the Comment entity, which is loaded together with its picture
         Comment comment = commentRepository.findById(commentId)
                 .orElseThrow(() -> new RuntimeException("Comment not found."));
+        Picture picture = comment.getPicture();
+        if (!picture.getId().equals(picId)) {
+            throw new RuntimeException("Picture not found.");
+        }
         String username = authentication.getName();
 
         // Check if the user is an admin
@@ -76,41 +84,73 @@ public class CommentService {
                     + comment.getAuthor().getName() + ")");
         }
 
-        // Actual deletion process
-        picture.getComments().remove(comment);  // Remove from picture
-        User author = comment.getAuthor();
-        author.getComments().remove(comment);   // Remove from author
+        // Actual deletion process, the comment owns its relations so the picture's
+        // and the author's lists of comments are not loaded
+        // Mapped first, mapping the author loads its comments, which must then forget this one
+        CommentDTO deleted = toDTO(comment);
+        detach(comment);
         commentRepository.delete(comment);      // Delete from database
+        pictureRepository.decrementCommentCount(picture.getId());
 
         // Return the deleted comment as a DTO
-        return toDTO(comment);
+        return deleted;
     }
 
     /**
-     * Deletes a comment from a picture and from the comment repository.
-     * Removes the comment from the associated picture and author.
+     * Removes a comment from the lists of comments of its picture and author, only when those
+     * lists are already loaded: a loaded list still holding the comment would save it again.
      *
-     * @param commentId the ID of the comment to delete
-     * @param picId     the ID of the picture associated with the comment
-     * @return the deleted CommentDTO
+     * @param comment the comment about to be deleted
      */
-    public CommentDTO deleteCommentHelp(Long commentId, Long picId) {
-        // Fetch the Picture and Comment entities by their respective IDs
-        Picture picture = pictureRepository.findById(picId).orElseThrow();
-        Comment comment = commentRepository.findById(commentId).orElseThrow();
-
-        // Remove the comment from the picture's list of comments
-        picture.getComments().remove(comment);
-
-        // Remove the comment from the author's list of comments
+    private void detach(Comment comment) {
+        Picture picture = comment.getPicture();
+        if (Hibernate.isInitialized(picture.getComments())) {
+            picture.getComments().remove(comment);  // Remove from picture
+        }
         User author = comment.getAuthor();
-        author.getComments().remove(comment);
+        if (author != null && Hibernate.isInitialized(author.getComments())) {
+            author.getComments().remove(comment);   // Remove from author
+        }
+    }
 
-        // Delete the comment from the repository
-        commentRepository.delete(comment);
+    /**
+     * Retrieves a page of the comments of a picture, newest first, using keyset pagination.
+     *
+     * @param picId  the ID of the picture
+     * @param cursor the continuation token returned with the previous page, null for the first page
+     * @param size   the maximum number of comments in the page, at most 100
+     * @return a CursorPage of CommentSimpleDTOs
+     */
+    public CursorPage<CommentSimpleDTO> getComments(long picId, String cursor, int size) {
+        size = PageCursor.pageSize(size);
+        // One row more than the page size tells whether there is a next page
+        List<CommentSimpleDTO> rows = commentRepository.findPageByPicture(picId, PageCursor.decodeBefore(cursor),
+                Limit.of(size + 1));
+        return PageCursor.page(rows, size, CommentSimpleDTO::id);
+    }
 
-        // Return the deleted comment as a DTO
-        return toDTO(comment);
+    /**
+     * Deletes every comment of a picture with a single statement. The picture's comment
+     * counter is not adjusted, the picture itself is about to be deleted.
+     *
+     * @param picId the ID of the picture
+     * @return the number of comments deleted
+     */
+    @Transactional
+    public int deleteComments(long picId) {
+        return commentRepository.deleteByPicture(picId);
+    }
+
+    /**
+     * Deletes every comment written by a user with a single statement. The comment counters of
+     * the pictures must have been adjusted before.
+     *
+     * @param userId the ID of the user
+     * @return the number of comments deleted
+     */
+    @Transactional
+    public int deleteCommentsOfUser(long userId) {
+        return commentRepository.deleteByAuthor(userId);
     }
 
     public void addComment(Comment comment) {
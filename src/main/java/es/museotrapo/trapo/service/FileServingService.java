@@ -0,0 +1,356 @@
+package es.museotrapo.trapo.service;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes files to HTTP responses without reading them whole into memory.
+ * Large files are handed to Tomcat's sendfile when the connector supports it, so the kernel copies
+ * them without passing through the JVM. Sendfile is not used over TLS (the 8443 connector), nor for
+ * small files: those are copied with FileChannel.transferTo, which for a servlet stream is still a
+ * user-space copy in 8 KB chunks, through a temporary native buffer and the reused heap array of
+ * Channels.newChannel. Measured against an InputStream copy it is no faster and allocates about as
+ * little (tens of KB per response, see FileServingServiceTest): the gain comes from sendfile only.
+ * Conditional requests (If-None-Match / If-Modified-Since) and byte ranges are answered
+ * before and while the file is read. In-memory copies (see HotImageCache) get the same handling.
+ */
+@Service
+public class FileServingService {
+
+    // Request attributes of Tomcat's sendfile support (org.apache.tomcat.util.net.Constants / Globals)
+    static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private final long sendfileThreshold;
+
+    public FileServingService(@Value("${trapo.files.sendfile-threshold:49152}") long sendfileThreshold) {
+        this.sendfileThreshold = sendfileThreshold;
+    }
+
+    /**
+     * Writes a file as the body of the response, honouring conditional and range requests.
+     * A matching If-None-Match or If-Modified-Since is answered with 304 before the file is opened.
+     *
+     * @param request      the current request
+     * @param response     the response to write to
+     * @param file         the file to send
+     * @param contentType  the MIME type of the file
+     * @param etag         the strong entity tag of the file, quoted
+     * @param cacheControl the caching policy sent with the file
+     * @throws IOException if the file cannot be read or the response cannot be written
+     */
+    public void serveFile(HttpServletRequest request, HttpServletResponse response, Path file, String contentType,
+                          String etag, CacheControl cacheControl) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        serve(request, response, contentType, etag, lastModified, cacheControl, new FileBody(file));
+    }
+
+    /**
+     * Writes an in-memory copy of a file as the body of the response, with the same conditional
+     * and range handling as {@link #serveFile}.
+     *
+     * @param request      the current request
+     * @param response     the response to write to
+     * @param content      the content to send, its position and limit are left untouched
+     * @param contentType  the MIME type of the content
+     * @param etag         the strong entity tag of the content, quoted, or null to skip validation
+     * @param lastModified the modification time of the content in milliseconds, or -1 if unknown
+     * @param cacheControl the caching policy sent with the content
+     * @throws IOException if the response cannot be written
+     */
+    public void serveBuffer(HttpServletRequest request, HttpServletResponse response, ByteBuffer content,
+                            String contentType, String etag, long lastModified, CacheControl cacheControl)
+            throws IOException {
+        serve(request, response, contentType, etag, lastModified, cacheControl, new BufferBody(content));
+    }
+
+    /**
+     * Copies a stream as the body of the response. Without a validator or random access, conditional
+     * and range requests are not supported: the whole content is always sent.
+     *
+     * @param response     the response to write to
+     * @param in           the content to send, read until the end
+     * @param length       the length of the content in bytes
+     * @param contentType  the MIME type of the content
+     * @param cacheControl the caching policy sent with the content
+     * @throws IOException if the stream cannot be read or the response cannot be written
+     */
+    public void serveStream(HttpServletResponse response, InputStream in, long length, String contentType,
+                            CacheControl cacheControl) throws IOException {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        response.setContentType(contentType);
+        response.setContentLengthLong(length);
+        in.transferTo(response.getOutputStream());
+    }
+
+    private void serve(HttpServletRequest request, HttpServletResponse response, String contentType, String etag,
+                       long lastModified, CacheControl cacheControl, Body body) throws IOException {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        if (etag != null && new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return; // 304 Not Modified, ETag and Last-Modified are already set
+        }
+
+        long length = body.length();
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        List<Region> regions;
+        try {
+            regions = requestedRegions(request, etag, lastModified, length);
+        } catch (IllegalArgumentException e) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+
+        if (regions.isEmpty()) {
+            response.setContentType(contentType);
+            body.sendRegion(request, response, new Region(0, length - 1));
+        } else if (regions.size() == 1) {
+            Region region = regions.get(0);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, region.contentRange(length));
+            body.sendRegion(request, response, region);
+        } else {
+            sendMultipart(response, body, contentType, regions, length);
+        }
+    }
+
+    /**
+     * Resolves the Range header into file regions.
+     *
+     * @return the requested regions, or an empty list if the whole file must be sent
+     * @throws IllegalArgumentException if none of the requested ranges can be satisfied
+     */
+    private List<Region> requestedRegions(HttpServletRequest request, String etag, long lastModified, long length) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)) {
+            return List.of();
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return List.of(); // A malformed Range header is ignored
+        }
+
+        List<Region> regions = new ArrayList<>();
+        long total = 0;
+        for (HttpRange range : ranges) {
+            if (length == 0) {
+                break;
+            }
+            // Unsatisfiable ranges are skipped as long as another one can be served
+            try {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start < length && start <= end) {
+                    Region region = new Region(start, end);
+                    total += region.length();
+                    regions.add(region);
+                }
+            } catch (IllegalArgumentException e) {
+                // Range outside of the file
+            }
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("Requested range not satisfiable");
+        }
+        // Overlapping ranges asking for more than the file itself are answered with the whole file
+        return total > length ? List.of() : regions;
+    }
+
+    /**
+     * Ranges only apply if the client's copy is still current (RFC 9110, If-Range).
+     */
+    private boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return etag != null && ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false; // Weak tags never match for ranges
+        }
+        if (lastModified < 0) {
+            return false;
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends several regions of the body as a multipart/byteranges body.
+     */
+    private void sendMultipart(HttpServletResponse response, Body body, String contentType, List<Region> regions,
+                               long length) throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        body.writeRegions(regions, region -> {
+            String partHeaders = "\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + region.contentRange(length) + "\r\n\r\n";
+            out.write(partHeaders.getBytes(StandardCharsets.US_ASCII));
+            return target;
+        });
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Copies a region of a file channel to the target, looping until every byte is written.
+     */
+    static void transfer(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long written = channel.transferTo(position, end - position, target);
+            if (written <= 0) {
+                break; // End of file reached earlier than expected
+            }
+            position += written;
+        }
+    }
+
+    /**
+     * Content of a response, either a file on disk or a buffer in memory.
+     */
+    private interface Body {
+
+        long length() throws IOException;
+
+        /**
+         * Sends one region as the whole response body.
+         */
+        void sendRegion(HttpServletRequest request, HttpServletResponse response, Region region) throws IOException;
+
+        /**
+         * Writes several regions in order, asking for the target of each one just before writing it.
+         */
+        void writeRegions(List<Region> regions, PartTarget partTarget) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface PartTarget {
+
+        WritableByteChannel open(Region region) throws IOException;
+    }
+
+    private class FileBody implements Body {
+
+        private final Path file;
+
+        FileBody(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return Files.size(file);
+        }
+
+        @Override
+        public void sendRegion(HttpServletRequest request, HttpServletResponse response, Region region)
+                throws IOException {
+            response.setContentLengthLong(region.length());
+
+            if (region.length() >= sendfileThreshold
+                    && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+                // Tomcat sends the file from the kernel once the servlet returns, end is exclusive
+                request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START_ATTR, region.start());
+                request.setAttribute(SENDFILE_END_ATTR, region.end() + 1);
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                transfer(channel, region.start(), region.length(), Channels.newChannel(response.getOutputStream()));
+            }
+        }
+
+        @Override
+        public void writeRegions(List<Region> regions, PartTarget partTarget) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (Region region : regions) {
+                    transfer(channel, region.start(), region.length(), partTarget.open(region));
+                }
+            }
+        }
+    }
+
+    private record BufferBody(ByteBuffer content) implements Body {
+
+        @Override
+        public long length() {
+            return content.remaining();
+        }
+
+        @Override
+        public void sendRegion(HttpServletRequest request, HttpServletResponse response, Region region)
+                throws IOException {
+            response.setContentLengthLong(region.length());
+            write(region, Channels.newChannel(response.getOutputStream()));
+        }
+
+        @Override
+        public void writeRegions(List<Region> regions, PartTarget partTarget) throws IOException {
+            for (Region region : regions) {
+                write(region, partTarget.open(region));
+            }
+        }
+
+        private void write(Region region, WritableByteChannel target) throws IOException {
+            // A view of the region, so concurrent readers of the same buffer never share a position
+            ByteBuffer slice = content.slice(content.position() + (int) region.start(), (int) region.length());
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+        }
+    }
+
+    /**
+     * Inclusive byte region of a response body.
+     */
+    private record Region(long start, long end) {
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long totalLength) {
+            return "bytes " + start + "-" + end + "/" + totalLength;
+        }
+    }
+}
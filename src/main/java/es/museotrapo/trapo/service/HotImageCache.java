@@ -0,0 +1,178 @@
+package es.museotrapo.trapo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of the most requested picture images, kept in direct ByteBuffers outside the heap.
+ * Entries are keyed by picture and width, so a hit is answered without reading the database.
+ * Eviction is frequency aware (Caffeine's W-TinyLFU) and bounded by a total byte budget.
+ * The JVM's -XX:MaxDirectMemorySize must leave room for trapo.images.cache.max-bytes.
+ */
+@Service
+public class HotImageCache {
+
+    private final Cache<Key, CachedImage> cache;
+    private final long maxEntryBytes;
+
+    // Bumped on every invalidation, so a load that raced with one never leaves a stale entry behind
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public HotImageCache(MeterRegistry meterRegistry,
+                         @Value("${trapo.images.cache.max-bytes:67108864}") long maxBytes,
+                         @Value("${trapo.images.cache.max-entry-bytes:2097152}") long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, CachedImage image) -> image.content().capacity())
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "pictureImages");
+        Gauge.builder("trapo.images.cache.bytes", cache,
+                        c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L))
+                .description("Bytes of image data held by the hot image cache")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Looks up the cached image of a picture.
+     *
+     * @param pictureId the ID of the picture
+     * @param width     the derivative width, or 0 for the original
+     * @return the cached image, or null on a miss
+     */
+    public CachedImage get(long pictureId, int width) {
+        return cache.getIfPresent(new Key(pictureId, width));
+    }
+
+    /**
+     * Marks the start of a load, to be passed to {@link #put} once the image has been read.
+     */
+    public long beginLoad() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches an image file if it is small enough. Larger images keep being sent straight from disk.
+     *
+     * @param loadStamp   the value returned by {@link #beginLoad} before the picture was read
+     * @param pictureId   the ID of the picture
+     * @param width       the derivative width, or 0 for the original
+     * @param file        the image file
+     * @param contentType the MIME type of the image
+     * @param etag        the strong entity tag of the image, quoted
+     * @param hash        the content hash of the original image, used to validate ?v= requests
+     * @throws IOException if the file cannot be read
+     */
+    public void put(long loadStamp, long pictureId, int width, Path file, String contentType, String etag, String hash)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxEntryBytes) {
+                return;
+            }
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // Keep reading until the buffer is full
+            }
+            content.flip();
+            put(loadStamp, new Key(pictureId, width), new CachedImage(content.asReadOnlyBuffer(), contentType, etag,
+                    file.toFile().lastModified(), hash));
+        }
+    }
+
+    /**
+     * Caches an image that is only available as a stream, e.g. a legacy database blob, if it is small
+     * enough. The length is checked first, so larger images are never read into memory: the caller
+     * streams them to the response instead.
+     *
+     * @param loadStamp   the value returned by {@link #beginLoad} before the picture was read
+     * @param pictureId   the ID of the picture
+     * @param length      the length of the image in bytes
+     * @param in          the image content, only read if the image is cached
+     * @param contentType the MIME type of the image
+     * @return the cached image, which may already have been evicted again, or null if it is too large
+     * @throws IOException if the stream cannot be read
+     */
+    public CachedImage put(long loadStamp, long pictureId, long length, InputStream in, String contentType)
+            throws IOException {
+        if (length > maxEntryBytes) {
+            return null;
+        }
+        byte[] bytes = in.readNBytes((int) length);
+        ByteBuffer content = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        // Legacy images have no content hash, so they are sent without validators
+        CachedImage image = new CachedImage(content.asReadOnlyBuffer(), contentType, null, -1, null);
+        put(loadStamp, new Key(pictureId, 0), image);
+        return image;
+    }
+
+    private void put(long loadStamp, Key key, CachedImage image) {
+        cache.put(key, image);
+        if (invalidations.get() != loadStamp) {
+            cache.invalidate(key); // The picture may have changed while it was being read
+        }
+    }
+
+    /**
+     * Drops every cached image of a picture, e.g. when it is deleted or gets a new image.
+     *
+     * @param pictureId the ID of the picture
+     */
+    public void invalidate(long pictureId) {
+        invalidations.incrementAndGet();
+        cache.asMap().keySet().removeIf(key -> key.pictureId() == pictureId);
+    }
+
+    /**
+     * Drops every cached image of a picture now and again once the current transaction commits.
+     * Until then readers still see the old row and its file, so a load running meanwhile could
+     * cache the old image again; the second invalidation removes it. Without a transaction this
+     * is the same as {@link #invalidate}.
+     *
+     * @param pictureId the ID of the picture
+     */
+    public void invalidateOnCommit(long pictureId) {
+        invalidate(pictureId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(pictureId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Image bytes ready to be written to a response.
+     *
+     * @param content      read-only direct buffer with the image, shared by concurrent readers
+     * @param contentType  the MIME type of the image
+     * @param etag         the strong entity tag of the image, quoted, null for legacy images
+     * @param lastModified the modification time of the image in milliseconds, -1 for legacy images
+     * @param hash         the content hash of the original image, null for legacy images
+     */
+    public record CachedImage(ByteBuffer content, String contentType, String etag, long lastModified, String hash) {
+    }
+
+    private record Key(long pictureId, int width) {
+    }
+}
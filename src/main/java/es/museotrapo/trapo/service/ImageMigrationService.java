@@ -0,0 +1,88 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.PictureImage;
+import es.museotrapo.trapo.repository.PictureImageRepository;
+import es.museotrapo.trapo.repository.PictureRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Moves picture images that are still stored as database blobs into the ImageStore.
+ * Run the application with the --migrate-images argument to start the migration.
+ */
+@Service
+public class ImageMigrationService implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageMigrationService.class);
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureImageRepository pictureImageRepository;
+
+    @Autowired
+    private ImageReferenceService imageReferenceService;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public ImageMigrationService(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (args.containsOption("migrate-images")) {
+            int migrated = migrateLegacyImages();
+            log.info("Moved {} picture images from the database to the image store", migrated);
+        }
+    }
+
+    /**
+     * Copies every legacy blob to the image store and clears it from the database.
+     * Each picture is migrated in its own transaction, so a failure only affects that picture
+     * and the migration can be run again to pick up the remaining ones.
+     *
+     * @return the number of migrated pictures
+     */
+    public int migrateLegacyImages() {
+        List<Long> ids = pictureImageRepository.findIdsPendingMigration();
+        int migrated = 0;
+        for (Long id : ids) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> migrate(id));
+                migrated++;
+            } catch (RuntimeException e) {
+                log.error("Could not migrate the image of picture {}", id, e);
+            }
+        }
+        return migrated;
+    }
+
+    private void migrate(Long id) {
+        Picture picture = pictureRepository.findById(id).orElseThrow();
+        PictureImage pictureImage = pictureImageRepository.findById(id).orElseThrow();
+        try (InputStream in = pictureImage.getData().getBinaryStream()) {
+            picture.setStoredImage(imageReferenceService.store(in));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not read the image of picture " + id, e);
+        }
+        pictureRepository.save(picture);
+        pictureImageRepository.delete(pictureImage);
+    }
+}
@@ -0,0 +1,189 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.ImageStorageDTO;
+import es.museotrapo.trapo.model.ImageObject;
+import es.museotrapo.trapo.model.StoredImage;
+import es.museotrapo.trapo.repository.ImageObjectRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Deduplicates picture images by content. Uploads are hashed while they are written, and an image
+ * whose content is already in the ImageStore only adds a reference to the existing file.
+ * The file is deleted once the last picture referencing it has been removed.
+ */
+@Service
+public class ImageReferenceService {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageReferenceService.class);
+
+    @Autowired
+    private ImageStore imageStore;
+
+    @Autowired
+    private ImageObjectRepository imageObjectRepository;
+
+    private final TransactionTemplate newTransaction;
+    private final Counter duplicateUploads;
+    private final Counter duplicateBytes;
+    // Both gauges are computed from the same totals, read again once older than the maximum age
+    private final long totalsMaxAgeNanos;
+    private ImageStorageDTO totals;
+    private long totalsReadAt;
+
+    public ImageReferenceService(PlatformTransactionManager transactionManager, MeterRegistry meterRegistry,
+                                 @Value("${trapo.images.dedup.metrics-max-age:PT1M}") Duration totalsMaxAge) {
+        this.totalsMaxAgeNanos = totalsMaxAge.toNanos();
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        this.duplicateUploads = Counter.builder("trapo.images.dedup.hits")
+                .description("Uploaded images whose content was already stored")
+                .register(meterRegistry);
+        this.duplicateBytes = Counter.builder("trapo.images.dedup.uploaded.bytes")
+                .description("Bytes of uploaded images that were not stored again")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("trapo.images.dedup.saved", this, service -> service.savedBytes())
+                .description("Bytes saved by sharing image files between pictures")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("trapo.images.dedup.ratio", this, service -> service.dedupRatio())
+                .description("Image bytes referenced by pictures per byte actually stored")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Stores an image and adds a reference to it, hashing it while it is written.
+     *
+     * @param inputStream the image content, closed once it has been read
+     * @return the metadata of the stored image
+     * @throws IOException if the image cannot be written
+     */
+    public StoredImage store(InputStream inputStream) throws IOException {
+        return acquire(imageStore.stage(inputStream));
+    }
+
+    /**
+     * Moves a staged image into the store, or drops it if the same content is already there,
+     * and adds a reference to it. The reference must later be given back with {@link #release}.
+     *
+     * @param staged the staged image, deleted or moved by this method
+     * @return the metadata of the stored image
+     * @throws IOException if the image cannot be moved into the store
+     */
+    public StoredImage acquire(StagedImage staged) throws IOException {
+        Lock lock = imageStore.lockFor(staged.hash());
+        lock.lock();
+        try {
+            // The reference is committed before the file is moved, so a concurrent release of the
+            // same content either deletes the file before the move or sees the reference and keeps it
+            Boolean existing = newTransaction.execute(status -> {
+                if (imageObjectRepository.incrementReferences(staged.hash()) > 0) {
+                    return true;
+                }
+                imageObjectRepository.save(new ImageObject(staged.hash(), staged.size()));
+                return false;
+            });
+            StoredImage storedImage;
+            try {
+                storedImage = imageStore.commit(staged);
+            } catch (IOException | RuntimeException e) {
+                newTransaction.executeWithoutResult(status -> dropReference(staged.hash()));
+                Files.deleteIfExists(staged.file());
+                throw e;
+            }
+            if (Boolean.TRUE.equals(existing)) {
+                duplicateUploads.increment();
+                duplicateBytes.increment(staged.size());
+            }
+            return storedImage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a reference to an image. When it was the last one, the file and its derivatives
+     * are deleted once the current transaction commits.
+     *
+     * @param storedImage the image no longer used by a picture, may be null
+     */
+    @Transactional
+    public void release(StoredImage storedImage) {
+        if (storedImage == null || !dropReference(storedImage.hash())) {
+            return;
+        }
+        String hash = storedImage.hash();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                deleteIfUnreferenced(hash);
+            }
+        });
+    }
+
+    /**
+     * @return true if the image is not referenced anymore
+     */
+    private boolean dropReference(String hash) {
+        // Images stored before reference counting existed are not tracked and never deleted
+        return imageObjectRepository.decrementReferences(hash) > 0
+                && imageObjectRepository.deleteIfUnreferenced(hash) > 0;
+    }
+
+    private void deleteIfUnreferenced(String hash) {
+        Lock lock = imageStore.lockFor(hash);
+        lock.lock();
+        try {
+            if (!imageObjectRepository.existsById(hash)) { // Uploaded again meanwhile
+                imageStore.delete(hash);
+            }
+        } catch (IOException e) {
+            // The picture is already gone, an orphan file only wastes disk space
+            log.warn("Could not delete image {} from the image store", hash, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the byte totals of the ImageStore, read with a single query at most once per maximum age
+     */
+    private synchronized ImageStorageDTO totals() {
+        long now = System.nanoTime();
+        if (totals == null || now - totalsReadAt > totalsMaxAgeNanos) {
+            totals = imageObjectRepository.sumBytes();
+            totalsReadAt = now;
+        }
+        return totals;
+    }
+
+    private double savedBytes() {
+        ImageStorageDTO current = totals();
+        return current.referencedBytes() - current.storedBytes();
+    }
+
+    private double dedupRatio() {
+        ImageStorageDTO current = totals();
+        return current.storedBytes() == 0 ? 1.0 : (double) current.referencedBytes() / current.storedBytes();
+    }
+}
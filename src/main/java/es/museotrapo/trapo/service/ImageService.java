@@ -1,38 +1,42 @@
 package es.museotrapo.trapo.service;
 
+import es.museotrapo.trapo.model.StoredImage;
 import java.io.File;
 import java.io.IOException;
-import java.sql.Blob;
+import java.nio.file.Files;
 
-import org.hibernate.engine.jdbc.BlobProxy;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
 /**
  * Service class for handling image storage, retrieval, and deletion.
- * Stores images locally in the "pictures" directory.
+ * Copies local images into the content-addressed ImageStore.
  */
 @Service // Spring annotation indicating this is a service class
 public class ImageService {
 
+    @Autowired
+    private ImageReferenceService imageReferenceService;
+
     /**
-     * Converts a local image file to a Blob object.
-     * This Blob can be used for storage or retrieval from a database.
+     * Copies a local image file into the image store.
+     * The returned metadata can be associated with a picture.
      *
      * @param localFilePath the file path of the local image
-     * @return a Blob representation of the image
+     * @return the stored image metadata, or null if the file does not exist
      * @throws ResponseStatusException if there is an error processing the image
      */
-    public Blob localImageToBlob(String localFilePath) {
+    public StoredImage localImageToStore(String localFilePath) {
         // Creates a File object from the provided file path
         File imageFile = new File(localFilePath);
 
         // Checks if the file exists
         if (imageFile.exists()) {
             try {
-                // Generates a Blob from the image file's URI and content length
-                return BlobProxy.generateProxy(imageFile.toURI().toURL().openStream(), imageFile.length());
+                // Writes the image file to the image store, hashing it on the way
+                return imageReferenceService.store(Files.newInputStream(imageFile.toPath()));
             } catch (IOException e) {
                 // Throws a custom exception if an error occurs during file processing
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Error at processing the image");
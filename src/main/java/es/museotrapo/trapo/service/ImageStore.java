@@ -0,0 +1,226 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.StoredImage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed storage for picture images on the local filesystem.
+ * Every image is written once under a path derived from the SHA-256 of its bytes
+ * (e.g. images/ab/cd/abcd...), so the database only keeps the hash, size and MIME type.
+ * Which images are still in use is tracked by ImageReferenceService.
+ */
+@Service
+public class ImageStore {
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("^[0-9a-f]{64}$");
+    private static final String TMP_DIR = "tmp";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path rootDir;
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    public ImageStore(@Value("${trapo.images.dir:images}") String rootDir) throws IOException {
+        this.rootDir = Paths.get(rootDir).toAbsolutePath().normalize();
+        Files.createDirectories(this.rootDir.resolve(TMP_DIR));
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Writes an image to the scratch directory, hashing it on the way.
+     * The caller moves it to its final address with {@link #commit} or deletes it.
+     *
+     * @param inputStream the image content, closed once it has been read
+     * @return the staged image
+     * @throws IOException if the image cannot be written
+     */
+    public StagedImage stage(InputStream inputStream) throws IOException {
+        Path temp = Files.createTempFile(rootDir.resolve(TMP_DIR), "upload-", ".part");
+        try {
+            MessageDigest digest = newDigest();
+            long size;
+            try (InputStream in = new DigestInputStream(inputStream, digest)) {
+                size = Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new StagedImage(temp, HexFormat.of().formatHex(digest.digest()), size);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Moves a staged image to its final address. If an image with the same content
+     * already exists, the existing file is kept and the staged copy is deleted.
+     * Callers hold {@link #lockFor} the hash, so the move never races with a deletion.
+     *
+     * @param staged the staged image, inside this store
+     * @return the metadata of the stored image
+     * @throws IOException if the file cannot be moved
+     */
+    StoredImage commit(StagedImage staged) throws IOException {
+        Path target = resolve(staged.hash());
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            // Same directory tree, so the rename is atomic and readers never see a partial file
+            Files.move(staged.file(), target, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.deleteIfExists(staged.file());
+        }
+        return new StoredImage(staged.hash(), staged.size(), detectContentType(target));
+    }
+
+    /**
+     * Lock guarding the file of an image while it is added to or removed from the store.
+     * Locks are striped, so unrelated images may share one.
+     *
+     * @param hash the SHA-256 of the image
+     * @return the lock of the image
+     */
+    public Lock lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), locks.length)];
+    }
+
+    /**
+     * Resolves the path of an image from its hash.
+     *
+     * @param hash the SHA-256 of the image
+     * @return the path where the image is (or would be) stored
+     * @throws IllegalArgumentException if the hash is not a valid SHA-256 hex string
+     */
+    public Path resolve(String hash) {
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Invalid image hash");
+        }
+        return rootDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    /**
+     * Resolves the path of a derivative of an image (e.g. a thumbnail), stored next to the original.
+     *
+     * @param hash    the SHA-256 of the original image
+     * @param variant the name of the derivative, e.g. "w160.jpg"
+     * @return the path where the derivative is (or would be) stored
+     */
+    public Path resolveDerivative(String hash, String variant) {
+        Path original = resolve(hash);
+        return original.resolveSibling(hash + "." + variant);
+    }
+
+    /**
+     * Returns a resource reading the image straight from its file.
+     *
+     * @param hash the SHA-256 of the image
+     * @return the image as a Resource
+     * @throws NoSuchElementException if the image is not in the store
+     */
+    public Resource load(String hash) {
+        Path path = resolve(hash);
+        if (!Files.exists(path)) {
+            throw new NoSuchElementException("Image not found in store: " + hash);
+        }
+        return new FileSystemResource(path);
+    }
+
+    /**
+     * Deletes an image and its derivatives from the store. Callers must make sure no picture references it
+     * and hold {@link #lockFor} the hash.
+     *
+     * @param hash the SHA-256 of the image
+     * @throws IOException if the files cannot be deleted
+     */
+    public void delete(String hash) throws IOException {
+        Path original = resolve(hash);
+        Files.deleteIfExists(original);
+        if (Files.isDirectory(original.getParent())) {
+            try (DirectoryStream<Path> derivatives = Files.newDirectoryStream(original.getParent(), hash + ".*")) {
+                for (Path derivative : derivatives) {
+                    deleteRecursively(derivative); // Tile pyramids are directories
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory with everything inside it.
+     *
+     * @param path the file or directory to delete
+     * @throws IOException if something cannot be deleted
+     */
+    public static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+                for (Path child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Path of the store's scratch directory, used for files that are still being written.
+     */
+    public Path tmpDir() {
+        return rootDir.resolve(TMP_DIR);
+    }
+
+    /**
+     * Detects the MIME type of an image from its magic bytes instead of trusting the client.
+     */
+    private String detectContentType(Path file) throws IOException {
+        byte[] header = new byte[12];
+        int read;
+        try (InputStream in = Files.newInputStream(file)) {
+            read = in.readNBytes(header, 0, header.length);
+        }
+        if (read >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return MediaType.IMAGE_JPEG_VALUE;
+        }
+        if (read >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+            return MediaType.IMAGE_PNG_VALUE;
+        }
+        if (read >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8') {
+            return MediaType.IMAGE_GIF_VALUE;
+        }
+        if (read >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        }
+        if (read >= 2 && header[0] == 'B' && header[1] == 'M') {
+            return "image/bmp";
+        }
+        return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.CursorPage;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Opaque continuation tokens for keyset pagination. A token holds the ID of the last row
+ * of a page, and the next page is read with "WHERE id > :after ORDER BY id" (or
+ * "WHERE id < :before ORDER BY id DESC" for newest-first pages), so reading a deep page
+ * costs the same as reading the first one and no COUNT query is needed.
+ */
+public final class PageCursor {
+
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private PageCursor() {
+    }
+
+    /**
+     * Bounds a page size requested by a client.
+     *
+     * @param size the requested page size
+     * @return the size between 1 and MAX_PAGE_SIZE
+     */
+    public static int pageSize(int size) {
+        return Math.clamp(size, 1, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Decodes a continuation token.
+     *
+     * @param cursor the token sent by the client, null or empty for the first page
+     * @return the ID the page starts after, 0 for the first page
+     * @throws ResponseStatusException with 400 if the token is not valid
+     */
+    public static long decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            long after = Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+            if (after < 0) {
+                throw new NumberFormatException();
+            }
+            return after;
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+        }
+    }
+
+    /**
+     * Decodes a continuation token of a newest-first listing.
+     *
+     * @param cursor the token sent by the client, null or empty for the first page
+     * @return the ID the page starts before, Long.MAX_VALUE for the first page
+     * @throws ResponseStatusException with 400 if the token is not valid
+     */
+    public static long decodeBefore(String cursor) {
+        return cursor == null || cursor.isEmpty() ? Long.MAX_VALUE : decode(cursor);
+    }
+
+    /**
+     * Encodes the continuation token of the page after a row.
+     *
+     * @param id the ID of the last row of the page
+     * @return the token
+     */
+    public static String encode(long id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(Long.toString(id).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Builds a page from rows read with a limit of size + 1: the extra row only tells
+     * whether there is a next page and is not returned.
+     *
+     * @param rows the rows read, ordered by ID in either direction
+     * @param size the page size
+     * @param id   extracts the ID of a row
+     * @return the page, with the token of the next one if there is one
+     */
+    public static <T> CursorPage<T> page(List<T> rows, int size, Function<T, Long> id) {
+        if (rows.size() <= size) {
+            return new CursorPage<>(rows, null, false);
+        }
+        List<T> content = rows.subList(0, size);
+        return new CursorPage<>(List.copyOf(content), encode(id.apply(content.get(size - 1))), true);
+    }
+}
@@ -0,0 +1,38 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.repository.PictureRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Keeps the like and comment counters of pictures in line with the likes and comments they count.
+ * Counters are updated by the like and comment write paths, this job only fixes the drift left by
+ * writes that bypassed them, such as data imported straight into the database.
+ */
+@Service
+public class PictureCounterService {
+
+    private static final Logger log = LoggerFactory.getLogger(PictureCounterService.class);
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    /**
+     * Recomputes the counters of every picture from the join tables.
+     *
+     * @return the number of pictures whose counters were wrong
+     */
+    @Scheduled(cron = "${trapo.counters.repair-cron:0 30 4 * * *}")
+    @Transactional
+    public int repairCounters() {
+        int fixed = pictureRepository.repairCounters();
+        if (fixed > 0) {
+            log.info("Fixed the like and comment counters of {} pictures", fixed);
+        }
+        return fixed;
+    }
+}
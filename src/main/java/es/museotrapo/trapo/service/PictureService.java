@@ -1,33 +1,49 @@
 package es.museotrapo.trapo.service;
 
 import es.museotrapo.trapo.dto.CommentDTO;
+import es.museotrapo.trapo.dto.CommentSimpleDTO;
+import es.museotrapo.trapo.dto.CursorPage;
 import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.dto.PictureListingDTO;
 import es.museotrapo.trapo.dto.PictureMapper;
 import es.museotrapo.trapo.model.Comment;
 import es.museotrapo.trapo.model.Picture;
-import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.model.PictureImage;
+import es.museotrapo.trapo.model.StoredImage;
+import es.museotrapo.trapo.repository.PictureImageRepository;
+import es.museotrapo.trapo.repository.PictureLikeRepository;
 import es.museotrapo.trapo.repository.PictureRepository;
-import org.hibernate.engine.jdbc.BlobProxy;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
-import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Limit;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /**
@@ -37,10 +53,22 @@ import java.util.stream.Collectors;
 @Service // Spring annotation indicating this is a service class
 public class PictureService {
 
+    // Versioned image URLs never change their content
+    private static final Duration IMMUTABLE_MAX_AGE = Duration.ofDays(365);
+
     // Injecting repositories and services needed for picture operations
     @Autowired
     private PictureRepository pictureRepository;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PictureImageRepository pictureImageRepository;
+
+    @Autowired
+    private PictureLikeRepository pictureLikeRepository;
+
     @Autowired
     private CommentService commentService;
 
@@ -53,24 +81,60 @@ public class PictureService {
     @Autowired
     private PictureMapper mapper;
 
+    @Autowired
+    private ImageStore imageStore;
+
+    @Autowired
+    private ImageReferenceService imageReferenceService;
+
+    @Autowired
+    private FileServingService fileServingService;
+
+    @Autowired
+    private ThumbnailService thumbnailService;
+
+    @Autowired
+    private HotImageCache hotImageCache;
+
+    @Autowired
+    private TileService tileService;
+
     /**
-     * Retrieves all pictures and converts them to PictureDTOs.
+     * Retrieves a page of the listing of pictures, in ID order, using keyset pagination.
      *
-     * @return a collection of PictureDTOs.
+     * @param cursor the continuation token returned with the previous page, null for the first page.
+     * @param size   the maximum number of pictures in the page, at most 100.
+     * @return a CursorPage of PictureListingDTOs.
      */
-    public Collection<PictureDTO> getPictures() {
-        return toDTOs(pictureRepository.findAll());
+    public CursorPage<PictureListingDTO> getPictures(String cursor, int size) {
+        size = PageCursor.pageSize(size);
+        // One row more than the page size tells whether there is a next page
+        List<PictureListingDTO> rows = pictureRepository.findListingsAfter(PageCursor.decode(cursor), Limit.of(size + 1));
+        return PageCursor.page(rows, size, PictureListingDTO::id);
     }
 
     /**
-     * Retrieves a paginated list of pictures and converts them to PictureDTOs.
+     * Writes the listing of every picture as newline-delimited JSON, one object per line.
+     * Rows are read from a database stream and written as they arrive, so memory use does
+     * not depend on the size of the catalog.
      *
-     * @param pageable the pagination information.
-     * @return a Page of PictureDTOs.
+     * @param out the stream the listing is written to, left open.
+     * @throws IOException if the listing cannot be written.
      */
-    public Page<PictureDTO> getPictures(Pageable pageable) {
-        Page<Picture> picturePage = pictureRepository.findAll(pageable);
-        return convertToDTOPage(picturePage);
+    @Transactional(readOnly = true)
+    public void exportPictures(OutputStream out) throws IOException {
+        // One object per line, whatever the indentation configured for regular responses
+        ObjectWriter writer = objectMapper.writerFor(PictureListingDTO.class)
+                .without(SerializationFeature.INDENT_OUTPUT);
+        try (Stream<PictureListingDTO> pictures = pictureRepository.streamListings();
+             JsonGenerator generator = writer.createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            Iterator<PictureListingDTO> iterator = pictures.iterator();
+            while (iterator.hasNext()) {
+                writer.writeValue(generator, iterator.next());
+                generator.writeRaw('\n');
+            }
+        }
     }
 
     /**
@@ -104,10 +168,19 @@ public class PictureService {
             picture.setImage("True");
         }
 
-        // Generate a Blob from the image file and associate it with the picture
-        picture.setImageFile(BlobProxy.generateProxy(imageFile.getInputStream(), imageFile.getSize()));
         picture.setArtist(artistService.toDomain(artistService.getArtist(artistId))); // Associate the artist with the picture
-        pictureRepository.save(picture); // Save the picture
+
+        // Write the image file to the image store, or reuse an identical one, and keep only its hash, size and type
+        StoredImage storedImage = imageReferenceService.store(imageFile.getInputStream());
+        picture.setStoredImage(storedImage);
+        try {
+            pictureRepository.save(picture); // Save the picture
+        } catch (RuntimeException e) {
+            imageReferenceService.release(storedImage); // No picture uses the image, delete it unless shared
+            throw e;
+        }
+        thumbnailService.requestDerivatives(picture.getStoredImage()); // Build the resized copies in the background
+        tileService.requestTiles(picture.getStoredImage()); // Build the deep zoom tiles of large images
     }
 
     /**
@@ -131,18 +204,57 @@ public class PictureService {
      * @param picId       the ID of the picture to update.
      * @param location    the URI location of the image.
      * @param inputStream the input stream of the image file.
-     * @param size        the size of the image file.
      * @throws IOException if there is an error handling the image file.
      */
-    public void createPictureImageREST(Long picId, URI location, InputStream inputStream, long size) throws IOException {
+    public void createPictureImageREST(Long picId, URI location, InputStream inputStream) throws IOException {
         Picture picture = pictureRepository.findById(picId).orElseThrow();
+        attachImage(picture, location, imageReferenceService.store(inputStream)); // Write the image file to the image store
+    }
+
+    /**
+     * Associates an image that is already in the image store to an existing picture,
+     * e.g. one received through a chunked upload. The picture takes over the caller's reference to the image,
+     * which is given back if the picture cannot be updated (e.g. it was deleted meanwhile).
+     *
+     * @param picId       the ID of the picture to update.
+     * @param location    the URI location of the image.
+     * @param storedImage the image in the image store.
+     */
+    public void attachPictureImageREST(Long picId, URI location, StoredImage storedImage) {
+        Picture picture = pictureRepository.findById(picId).orElse(null);
+        if (picture == null) {
+            imageReferenceService.release(storedImage);
+            throw new NoSuchElementException();
+        }
+        attachImage(picture, location, storedImage);
+    }
+
+    /**
+     * Replaces the image of a picture. The reference to the new image is given back if the picture
+     * cannot be saved, so a failed update never leaks the file.
+     */
+    private void attachImage(Picture picture, URI location, StoredImage storedImage) {
+        Long picId = picture.getId();
+        StoredImage previousImage = picture.getStoredImage();
         picture.setImage(location.toString()); // Set the image location
-        picture.setImageFile(BlobProxy.generateProxy(inputStream, size)); // Set the image file
-        pictureRepository.save(picture); // Save the picture with the new image
+        picture.setStoredImage(storedImage);
+        try {
+            pictureRepository.save(picture); // Save the picture with the new image
+        } catch (RuntimeException e) {
+            imageReferenceService.release(storedImage);
+            throw e;
+        }
+        pictureImageRepository.deleteByPictureId(picId); // The legacy database copy, if any, is replaced
+        hotImageCache.invalidate(picId); // Cached copies belong to the previous image
+        imageReferenceService.release(previousImage); // Delete the previous file if no other picture uses it
+        thumbnailService.requestDerivatives(picture.getStoredImage()); // Build the resized copies in the background
+        tileService.requestTiles(picture.getStoredImage()); // Build the deep zoom tiles of large images
     }
 
     /**
      * Deletes a picture and its associated data (like user likes and comments).
+     * Everything is removed with a fixed number of set-based statements, whatever the number
+     * of likes and comments of the picture: none of them is loaded.
      *
      * @param pictureDTO the data transfer object representing the picture to delete.
      * @return the PictureDTO of the deleted picture.
@@ -151,39 +263,156 @@ public class PictureService {
     public PictureDTO deletePicture(PictureDTO pictureDTO) {
         Picture picture = pictureRepository.findById(pictureDTO.id()).orElseThrow();
 
-        // Remove the picture from all users' liked lists
-        for (User user : picture.getUserLikes()) {
-            user.getLikedPictures().remove(picture);
+        pictureLikeRepository.deleteByPicture(picture.getId()); // Delete all likes given to the picture
+        commentService.deleteComments(picture.getId()); // Delete all comments associated with the picture
+        pictureRepository.deleteByIdCustom(picture.getId()); // Delete the picture, its legacy image goes with it
+        hotImageCache.invalidateOnCommit(picture.getId()); // Readers see the picture until the delete commits
+        imageReferenceService.release(picture.getStoredImage()); // Delete the image file if no other picture uses it
+        return pictureDTO; // Return the deleted picture as a DTO
+    }
+
+    /**
+     * Writes the image of a picture to an HTTP response.
+     * Frequently requested images are answered from the in-memory HotImageCache without reading the database.
+     * Otherwise images in the image store are sent from their file without copying them through the heap,
+     * with a strong ETag built from their content hash so unchanged images are answered with 304.
+     * When the request asks for the current version (?v=hash) the image is cached as immutable.
+     * When a width is requested, the smallest derivative at least that wide is sent; if it is not
+     * built yet, it is queued and the original is sent meanwhile. If the original is not wider than
+     * that derivative, the original is sent and cached as for any other request.
+     *
+     * @param id       the ID of the picture.
+     * @param version  the image version requested by the client, may be null.
+     * @param width    the width requested by the client, may be null for the original.
+     * @param request  the current HTTP request.
+     * @param response the HTTP response to write the image to.
+     * @throws IOException if the image cannot be read or written.
+     * @throws SQLException if there is an error accessing a legacy image stored in the database.
+     * @throws NoSuchElementException if the picture has no image.
+     */
+    public void writePictureImage(long id, String version, Integer width, HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException, SQLException {
+        // Cache entries are keyed by the derivative width the request maps to, 0 for the original
+        Integer widthBucket = width != null ? thumbnailService.widthBucket(width) : null;
+        int cacheWidth = widthBucket != null ? widthBucket : 0;
+        HotImageCache.CachedImage cached = hotImageCache.get(id, cacheWidth);
+        if (cached != null) {
+            writeCachedImage(cached, version, request, response);
+            return;
         }
-        picture.getUserLikes().clear(); // Clear the list of users who liked the picture
-        pictureRepository.save(picture);
 
-        // Delete all comments associated with the picture
-        List<Comment> comments = picture.getComments();
-        for (int i = comments.size() - 1; i >= 0; --i) {
-            commentService.deleteCommentHelp(comments.get(i).getId(), pictureDTO.id());
+        long loadStamp = hotImageCache.beginLoad();
+        Picture picture = pictureRepository.findById(id).orElseThrow();
+        StoredImage storedImage = picture.getStoredImage();
+        if (storedImage != null) {
+            boolean immutable = storedImage.hash().equals(version);
+            Integer derivativeWidth = width != null ? thumbnailService.derivativeWidth(storedImage, width) : null;
+            if (derivativeWidth != null) {
+                Path derivative = thumbnailService.derivativePath(storedImage, derivativeWidth);
+                if (Files.exists(derivative)) {
+                    String contentType = thumbnailService.derivativeContentType(storedImage);
+                    String etag = "\"" + storedImage.hash() + "-w" + derivativeWidth + "\"";
+                    fileServingService.serveFile(request, response, derivative, contentType, etag,
+                            imageCacheControl(immutable));
+                    hotImageCache.put(loadStamp, id, cacheWidth, derivative, contentType, etag, storedImage.hash());
+                    return;
+                }
+                thumbnailService.requestDerivatives(storedImage);
+                immutable = false; // The URL must be fetched again once the derivative exists
+            }
+            Path original = imageStore.resolve(storedImage.hash());
+            String etag = "\"" + storedImage.hash() + "\"";
+            fileServingService.serveFile(request, response, original, storedImage.contentType(), etag,
+                    imageCacheControl(immutable));
+            if (derivativeWidth == null) {
+                // A missing derivative is not cached, so the next request picks it up once it is built
+                hotImageCache.put(loadStamp, id, cacheWidth, original, storedImage.contentType(), etag,
+                        storedImage.hash());
+            }
+        } else {
+            // Image not yet moved out of the database by --migrate-images, only loaded here
+            PictureImage pictureImage = pictureImageRepository.findById(id).orElseThrow();
+            long length = pictureImage.getData().length();
+            try (InputStream in = pictureImage.getData().getBinaryStream()) {
+                HotImageCache.CachedImage image = hotImageCache.put(loadStamp, id, length, in, MediaType.IMAGE_JPEG_VALUE);
+                if (image != null) {
+                    writeCachedImage(image, version, request, response);
+                } else {
+                    // Too large to cache, copied from the database without holding it in memory
+                    fileServingService.serveStream(response, in, length, MediaType.IMAGE_JPEG_VALUE,
+                            imageCacheControl(false));
+                }
+            }
         }
+    }
 
-        picture.getComments().clear(); // Clear the list of comments
-        pictureRepository.save(picture);
-        pictureRepository.deleteByIdCustom(picture.getId()); // Delete the picture
-        return pictureDTO; // Return the deleted picture as a DTO
+    private void writeCachedImage(HotImageCache.CachedImage cached, String version, HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException {
+        boolean immutable = cached.hash() != null && cached.hash().equals(version);
+        fileServingService.serveBuffer(request, response, cached.content(), cached.contentType(), cached.etag(),
+                cached.lastModified(), imageCacheControl(immutable));
     }
 
     /**
-     * Retrieves the image of a picture.
+     * Writes the Deep Zoom (DZI) manifest of the tile pyramid of a picture to an HTTP response.
+     * If the pyramid is not built yet, it is queued and 503 is returned until it is ready.
      *
-     * @param id the ID of the picture.
-     * @return a Resource containing the image file.
-     * @throws SQLException if the image file is not found or there is an error accessing it.
+     * @param id       the ID of the picture.
+     * @param version  the image version requested by the client, may be null.
+     * @param request  the current HTTP request.
+     * @param response the HTTP response to write the manifest to.
+     * @throws IOException if the manifest cannot be read or written.
+     * @throws NoSuchElementException if the picture has no image or it is too small to be tiled.
      */
-    public Resource getPictureImage(long id) throws SQLException {
-        Picture picture = pictureRepository.findById(id).orElseThrow();
-        if (picture.getImageFile() != null) {
-            return new InputStreamResource(picture.getImageFile().getBinaryStream()); // Return the image as a resource
-        } else {
-            throw new NoSuchElementException(); // Throw an error if the image is not found
+    public void writeTileManifest(long id, String version, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        StoredImage storedImage = pictureRepository.findById(id).orElseThrow().getStoredImage();
+        if (storedImage == null) {
+            throw new NoSuchElementException();
+        }
+        Path manifest = tileService.manifestPath(storedImage);
+        if (!Files.exists(manifest)) {
+            tileService.requestTiles(storedImage);
+            if (tileService.isUntiled(storedImage)) {
+                throw new NoSuchElementException(); // Small images are shown as they are
+            }
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Tiles are being generated");
+        }
+        fileServingService.serveFile(request, response, manifest, MediaType.APPLICATION_XML_VALUE,
+                "\"" + storedImage.hash() + "-dzi\"", imageCacheControl(storedImage.hash().equals(version)));
+    }
+
+    /**
+     * Writes one tile of the tile pyramid of a picture to an HTTP response.
+     * Tiles requested with the current version (?v=hash) are cached as immutable.
+     *
+     * @param id       the ID of the picture.
+     * @param level    the pyramid level.
+     * @param x        the column of the tile.
+     * @param y        the row of the tile.
+     * @param version  the image version requested by the client, may be null.
+     * @param request  the current HTTP request.
+     * @param response the HTTP response to write the tile to.
+     * @throws IOException if the tile cannot be read or written.
+     * @throws NoSuchElementException if the tile does not exist.
+     */
+    public void writeTile(long id, int level, int x, int y, String version, HttpServletRequest request,
+                          HttpServletResponse response) throws IOException {
+        StoredImage storedImage = pictureRepository.findById(id).orElseThrow().getStoredImage();
+        if (storedImage == null || level < 0 || x < 0 || y < 0) {
+            throw new NoSuchElementException();
+        }
+        Path tile = tileService.tilePath(storedImage, level, x, y);
+        if (!Files.exists(tile)) {
+            throw new NoSuchElementException();
         }
+        fileServingService.serveFile(request, response, tile, thumbnailService.derivativeContentType(storedImage),
+                "\"" + storedImage.hash() + "-t" + level + "-" + x + "-" + y + "\"",
+                imageCacheControl(storedImage.hash().equals(version)));
+    }
+
+    private CacheControl imageCacheControl(boolean immutable) {
+        return immutable ? CacheControl.maxAge(IMMUTABLE_MAX_AGE).cachePublic().immutable() : CacheControl.noCache();
     }
 
     /**
@@ -193,16 +422,16 @@ public class PictureService {
      * @param picId      the ID of the picture to add the comment to.
      * @return the updated PictureDTO with the new comment.
      */
+    @Transactional
     public CommentDTO addComment(CommentDTO commentDTO, Long picId) {
         Picture picture = pictureRepository.findById(picId).orElseThrow();
         Comment comment = commentService.toDomain(commentDTO);
         String SanitizedMessage = SanitizeService.sanitize(comment.getMessage());
         comment.setMessage(SanitizedMessage);
-        comment.setAuthor(userService.toDomain(userService.getLoggedUserDTO())); // Set the logged-in user as the author of the comment
-        picture.getComments().add(comment); // Add the comment to the picture's list of comments
-        comment.setPicture(picture);
+        comment.setAuthor(userService.getLoggedUser()); // Set the logged-in user as the author of the comment
+        comment.setPicture(picture); // The comment owns the relation, the picture's comments are not loaded
         commentService.addComment(comment);
-        pictureRepository.save(picture); // Save the picture with the new comment
+        pictureRepository.incrementCommentCount(picId);
         return commentService.toDTO(comment); // Return the updated picture as a DTO
     }
 
@@ -214,39 +443,23 @@ public class PictureService {
      * @return the updated PictureDTO after removing the comment.
      */
     public CommentDTO removeComment(Long commentId, long picId, Authentication authentication) {
-        Picture picture = pictureRepository.findById(picId).orElseThrow();
-        Comment comment = commentService.toDomain(commentService.getComment(commentId));
-        commentService.deleteComment(commentId, picId, authentication); // Delete the comment from the repository
-        return commentService.toDTO(comment); // Return the updated picture as a DTO
-    }
-
-    public Collection<CommentDTO> getComments(long picId) {
-        Picture picture = pictureRepository.findById(picId).orElseThrow();
-        Collection<Comment> comments = picture.getComments();
-        return commentService.toDTOs(comments);
+        return commentService.deleteComment(commentId, picId, authentication); // Delete the comment from the repository
     }
 
     /**
-     * Retrieves the total count of pictures in the repository.
+     * Retrieves a page of the comments of a picture, newest first, using keyset pagination.
      *
-     * @return the number of pictures.
+     * @param picId  the ID of the picture.
+     * @param cursor the continuation token returned with the previous page, null for the first page.
+     * @param size   the maximum number of comments in the page, at most 100.
+     * @return a CursorPage of CommentSimpleDTOs.
+     * @throws NoSuchElementException if the picture does not exist.
      */
-    public long count() {
-        return pictureRepository.count();
-    }
-
-    /**
-     * Converts a Page of Picture entities to a Page of PictureDTOs.
-     *
-     * @param picturePage the Page of Picture entities.
-     * @return a Page of PictureDTOs.
-     */
-    public Page<PictureDTO> convertToDTOPage(Page<Picture> picturePage) {
-        return new PageImpl<>(
-                picturePage.getContent().stream().map(mapper::toDTO).collect(Collectors.toList()),
-                picturePage.getPageable(),
-                picturePage.getTotalElements()
-        );
+    public CursorPage<CommentSimpleDTO> getComments(long picId, String cursor, int size) {
+        if (!pictureRepository.existsById(picId)) {
+            throw new NoSuchElementException("Picture not found: " + picId);
+        }
+        return commentService.getComments(picId, cursor, size);
     }
 
     // Helper methods to convert between Picture entities and PictureDTOs
@@ -258,8 +471,4 @@ public class PictureService {
     protected Picture toDomain(PictureDTO pictureDTO) {
         return mapper.toDomain(pictureDTO);
     }
-
-    private Collection<PictureDTO> toDTOs(Collection<Picture> pictures) {
-        return mapper.toDTOs(pictures);
-    }
 }
@@ -3,8 +3,10 @@ package es.museotrapo.trapo.service;
 import es.museotrapo.trapo.model.Artist;
 import es.museotrapo.trapo.model.Comment;
 import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.PictureLike;
 import es.museotrapo.trapo.model.User;
 import es.museotrapo.trapo.repository.ArtistRepository;
+import es.museotrapo.trapo.repository.PictureLikeRepository;
 import es.museotrapo.trapo.repository.PictureRepository;
 import es.museotrapo.trapo.repository.UserRepository;
 import jakarta.annotation.PostConstruct;
@@ -32,6 +34,10 @@ public class SampleDataService {
     private ArtistRepository artistRepository;
     @Autowired
     private PasswordEncoder passwordEncoder;
+    @Autowired
+    private PictureLikeRepository pictureLikeRepository;
+    @Autowired
+    private PictureCounterService pictureCounterService;
 
     /**
      * Method executed after the beans are created and the dependencies are
@@ -77,8 +83,8 @@ public class SampleDataService {
         Picture monaLisa = new Picture("Mona Picha", "1900");
         Picture marioConda = new Picture("MarioConda", "2000");
 
-        monaLisa.setImageFile(imageService.localImageToBlob("pictures/monapicha.jpeg"));
-        marioConda.setImageFile(imageService.localImageToBlob("pictures/MarioConda.jpg"));
+        monaLisa.setStoredImage(imageService.localImageToStore("pictures/monapicha.jpeg"));
+        marioConda.setStoredImage(imageService.localImageToStore("pictures/MarioConda.jpg"));
 
         monaLisa.setImage("true");
         marioConda.setImage("true");
@@ -86,9 +92,6 @@ public class SampleDataService {
         monaLisa.setArtist(daVinci);
         marioConda.setArtist(daVinchi);
 
-        monaLisa.getUserLikes().add(user1);
-        marioConda.getUserLikes().add(user2);
-
         // Create sample comments
         Comment commentSample1 = new Comment("Amazing");
         Comment commentSample2 = new Comment("Disgusting");
@@ -112,5 +115,12 @@ public class SampleDataService {
 
         pictureRepository.save(monaLisa);
         pictureRepository.save(marioConda);
+
+        // Create sample likes
+        pictureLikeRepository.save(new PictureLike(monaLisa, user1));
+        pictureLikeRepository.save(new PictureLike(marioConda, user2));
+
+        // The sample likes and comments were saved without the counters, count them
+        pictureCounterService.repairCounters();
     }
 }
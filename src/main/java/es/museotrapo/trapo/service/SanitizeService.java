@@ -5,7 +5,6 @@ import org.owasp.html.PolicyFactory;
 import org.owasp.html.Sanitizers;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -15,6 +14,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.text.Normalizer;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -46,6 +46,16 @@ public class SanitizeService {
      */
     private static final String[] ALLOWED_EXTENSIONS = {"pdf"};
 
+    /**
+     * Magic bytes every PDF file starts with.
+     */
+    private static final byte[] PDF_HEADER = "%PDF-".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Number of bytes at the end of a PDF file where the %%EOF marker is searched.
+     */
+    private static final int PDF_TRAILER_WINDOW = 1024;
+
     /**
      * Sanitize input HTML according to the defined policy.
      * @param input raw HTML string
@@ -80,12 +90,72 @@ public class SanitizeService {
     }
 
     /**
-     * Validate that the uploaded file is a real PDF and matches expected MIME type.
+     * Validate that the uploaded file is a real PDF and write it to its destination in a single pass.
+     * The %PDF header is checked on the first bytes, the size limit is enforced while reading and the
+     * last bytes are kept to check the %%EOF trailer, so the upload is read once and never copied to a
+     * temporary file. The destination is created with CREATE_NEW and deleted if the file is rejected.
      * @param fileName original file name for extension check
-     * @param fileContent input stream of the uploaded file
-     * @throws IOException on IO error or invalid file
+     * @param fileContent input stream of the uploaded file, read until its end
+     * @param destination path the file is written to, must not exist
+     * @param maxBytes maximum size of the file
+     * @return number of bytes written
+     * @throws IOException on IO error, or FileAlreadyExistsException if the destination exists
      */
-    public void validateFileExtensionAndContent(String fileName, InputStream fileContent) throws IOException {
+    public long writeValidatedPdf(String fileName, InputStream fileContent, Path destination, long maxBytes)
+            throws IOException {
+        validatePdfFileName(fileName);
+
+        byte[] buf = new byte[8192];
+        // Last bytes read, the %%EOF marker must be within the trailer
+        byte[] tail = new byte[PDF_TRAILER_WINDOW];
+        int tailLength = 0;
+        long total = 0;
+        // Fails with FileAlreadyExistsException instead of overwriting an existing file
+        OutputStream os = Files.newOutputStream(destination, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        boolean written = false;
+        try (os) {
+            // Read and verify the PDF magic header (%PDF-)
+            byte[] header = fileContent.readNBytes(PDF_HEADER.length);
+            if (header.length != PDF_HEADER.length) {
+                throw new IllegalArgumentException("File too short or unreadable");
+            }
+            if (!Arrays.equals(header, PDF_HEADER)) {
+                throw new IllegalArgumentException("Invalid PDF file");
+            }
+            os.write(header);
+            total = header.length;
+            System.arraycopy(header, 0, tail, 0, header.length);
+            tailLength = header.length;
+
+            int read;
+            while ((read = fileContent.read(buf)) != -1) {
+                total += read;
+                // Stop as soon as the limit is exceeded instead of reading the whole upload
+                if (total > maxBytes) {
+                    throw new IllegalArgumentException("El archivo es demasiado grande");
+                }
+                os.write(buf, 0, read);
+                tailLength = slide(tail, tailLength, buf, read);
+            }
+            if (!hasEofMarker(tail, tailLength)) {
+                throw new IllegalArgumentException("Invalid PDF file: missing %%EOF marker");
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                // Never leave a rejected or truncated upload behind
+                Files.deleteIfExists(destination);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Check the extension of an uploaded file name: exactly one .pdf extension.
+     * @param fileName original file name
+     */
+    private void validatePdfFileName(String fileName) {
         // Basic file name presence check
         if (fileName == null || fileName.trim().isEmpty()) {
             throw new IllegalArgumentException("Invalid file name");
@@ -98,45 +168,26 @@ public class SanitizeService {
         if (!lower.matches("^[\\w\\s-]+\\.pdf$") || lower.chars().filter(ch -> ch == '.').count() != 1) {
             throw new IllegalArgumentException("Only .pdf extension allowed");
         }
+    }
 
-        // Wrap stream to support mark/reset
-        if (!fileContent.markSupported()) {
-            fileContent = new BufferedInputStream(fileContent);
-        }
-        // Mark stream up to expected max size (e.g., 6MB)
-        fileContent.mark(5 * 1024 * 1024);
-
-        // Read and verify the PDF magic header (%PDF)
-        byte[] header = new byte[4];
-        if (fileContent.read(header) != 4) {
-            throw new IllegalArgumentException("File too short or unreadable");
-        }
-        String sig = new String(header, StandardCharsets.US_ASCII);
-        if (!"%PDF".equals(sig)) {
-            throw new IllegalArgumentException("Invalid PDF file");
-        }
-        // Reset to start for full inspection
-        fileContent.reset();
-
-        // Write stream to a temporary file for MIME type probing
-        Path temp = Files.createTempFile("upload-", ".pdf");
-        try (OutputStream os = Files.newOutputStream(temp, StandardOpenOption.WRITE)) {
-            byte[] buf = new byte[8192];
-            int read;
-            while ((read = fileContent.read(buf)) != -1) {
-                os.write(buf, 0, read);
-            }
-        }
-        // Probe the content type of the temp file
-        String type = Files.probeContentType(temp);
-        // Clean up temp file
-        Files.deleteIfExists(temp);
-        // Reject if not standard PDF MIME type
-        if (!"application/pdf".equals(type)) {
-            throw new IllegalArgumentException("Unexpected MIME type: " + type);
+    /**
+     * Append the bytes just read to the trailer window, keeping only the last ones.
+     * @return new length of the window
+     */
+    private static int slide(byte[] tail, int tailLength, byte[] buf, int read) {
+        if (read >= tail.length) {
+            System.arraycopy(buf, read - tail.length, tail, 0, tail.length);
+            return tail.length;
         }
+        int keep = Math.min(tailLength, tail.length - read);
+        System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+        System.arraycopy(buf, 0, tail, keep, read);
+        return keep + read;
+    }
 
-        // Reset stream again for downstream processing
-        fileContent.reset();
+    private static boolean hasEofMarker(byte[] tail, int tailLength) {
+        // Readers accept the marker anywhere in the trailer, followed by line endings or padding
+        String trailer = new String(tail, 0, tailLength, StandardCharsets.ISO_8859_1);
+        return trailer.contains("%%EOF");
     }
 }
@@ -0,0 +1,17 @@
+package es.museotrapo.trapo.service;
+
+import java.nio.file.Path;
+
+/**
+ * An image written to the scratch directory of the {@link ImageStore} and hashed,
+ * but not yet moved to its final address.
+ *
+ * @param file scratch file holding the image
+ * @param hash hex encoded SHA-256 of the image bytes
+ * @param size size of the image in bytes
+ */
+public record StagedImage(
+        Path file,
+        String hash,
+        long size) {
+}
@@ -0,0 +1,348 @@
+package es.museotrapo.trapo.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import es.museotrapo.trapo.model.StoredImage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds resized copies (derivatives) of uploaded picture images in the background.
+ * Every image gets one derivative per configured width smaller than the original,
+ * stored next to it in the ImageStore. Until a derivative exists, callers serve the original.
+ * The width of each original is remembered, so requests for a width the image does not exceed are
+ * served the original at once, and images that cannot be decoded are never queued again.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final int MAX_KNOWN_WIDTHS = 100_000;
+    // Width remembered for originals that cannot be decoded
+    private static final int UNDECODABLE = -1;
+
+    private final ImageStore imageStore;
+    private final List<Integer> widths;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    private final Cache<String, Integer> originalWidths = Caffeine.newBuilder()
+            .maximumSize(MAX_KNOWN_WIDTHS)
+            .build();
+
+    private final Timer decodeTimer;
+    private final Timer scaleTimer;
+    private final Timer encodeTimer;
+    private final Counter failures;
+
+    public ThumbnailService(ImageStore imageStore, MeterRegistry meterRegistry,
+                            @Value("${trapo.images.derivative-widths:160,480,1280}") List<Integer> widths,
+                            @Value("${trapo.images.derivative-threads:2}") int threads,
+                            @Value("${trapo.images.derivative-queue:1000}") int queueCapacity) {
+        this.imageStore = imageStore;
+        this.widths = widths.stream().sorted().toList();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "image-derivatives-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.decodeTimer = stageTimer(meterRegistry, "decode");
+        this.scaleTimer = stageTimer(meterRegistry, "scale");
+        this.encodeTimer = stageTimer(meterRegistry, "encode");
+        this.failures = Counter.builder("trapo.images.derivatives.failures")
+                .description("Images whose derivatives could not be built")
+                .register(meterRegistry);
+        Gauge.builder("trapo.images.derivatives.queue", executor, e -> e.getQueue().size())
+                .description("Images waiting for their derivatives to be built")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queues the generation of the derivatives of an image. Does nothing if the image
+     * cannot be decoded, already failed to decode, is already queued, or the queue is full.
+     *
+     * @param storedImage the original image
+     */
+    public void requestDerivatives(StoredImage storedImage) {
+        if (storedImage == null || derivativeFormat(storedImage.contentType()) == null
+                || Integer.valueOf(UNDECODABLE).equals(originalWidths.getIfPresent(storedImage.hash()))
+                || !inProgress.add(storedImage.hash())) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    buildDerivatives(storedImage);
+                } catch (Exception e) {
+                    originalWidths.put(storedImage.hash(), UNDECODABLE);
+                    failures.increment();
+                    log.warn("Could not build derivatives of image {}", storedImage.hash(), e);
+                } finally {
+                    inProgress.remove(storedImage.hash());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The original keeps being served, the derivatives are requested again on the next miss
+            inProgress.remove(storedImage.hash());
+            log.debug("Derivative queue full, skipping image {}", storedImage.hash());
+        }
+    }
+
+    /**
+     * Finds the derivative to serve for a requested width: the smallest one at least as wide.
+     * Derivatives are never upscaled, so none exists when the original is not wider than it.
+     *
+     * @param storedImage    the original image
+     * @param requestedWidth the width requested by the client
+     * @return the width of the derivative to serve, or null if the original must be served
+     */
+    public Integer derivativeWidth(StoredImage storedImage, int requestedWidth) {
+        Integer width = widthBucket(requestedWidth);
+        if (width == null || derivativeFormat(storedImage.contentType()) == null) {
+            return null;
+        }
+        // Only the header is read, once per image
+        int originalWidth = originalWidths.get(storedImage.hash(), hash -> readWidth(imageStore.resolve(hash)));
+        return width < originalWidth ? width : null;
+    }
+
+    /**
+     * Rounds a requested width up to the closest configured derivative width,
+     * without looking at the image.
+     *
+     * @param requestedWidth the width requested by the client
+     * @return the derivative width, or null if it is wider than every derivative
+     */
+    public Integer widthBucket(int requestedWidth) {
+        for (int width : widths) {
+            if (width >= requestedWidth) {
+                return width;
+            }
+        }
+        return null; // Wider than every derivative
+    }
+
+    /**
+     * Resolves the file of a derivative, which may not exist yet.
+     *
+     * @param storedImage the original image
+     * @param width       a width returned by {@link #derivativeWidth}
+     * @return the path of the derivative
+     */
+    public Path derivativePath(StoredImage storedImage, int width) {
+        return imageStore.resolveDerivative(storedImage.hash(), variant(width, derivativeFormat(storedImage.contentType())));
+    }
+
+    /**
+     * MIME type of the derivatives of an image.
+     *
+     * @param storedImage the original image
+     * @return image/png for formats that may carry transparency, image/jpeg otherwise
+     */
+    public String derivativeContentType(StoredImage storedImage) {
+        return "png".equals(derivativeFormat(storedImage.contentType()))
+                ? MediaType.IMAGE_PNG_VALUE : MediaType.IMAGE_JPEG_VALUE;
+    }
+
+    /**
+     * @return the number of images ever queued for their derivatives
+     */
+    long submittedTasks() {
+        return executor.getTaskCount();
+    }
+
+    private void buildDerivatives(StoredImage storedImage) throws IOException {
+        String format = derivativeFormat(storedImage.contentType());
+        Path original = imageStore.resolve(storedImage.hash());
+
+        long start = System.nanoTime();
+        BufferedImage source = decode(original, widths.get(widths.size() - 1));
+        decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (source == null) {
+            originalWidths.put(storedImage.hash(), UNDECODABLE);
+            return;
+        }
+
+        // From the widest to the narrowest, each derivative is scaled from the previous one
+        for (int i = widths.size() - 1; i >= 0; i--) {
+            int width = widths.get(i);
+            if (width >= source.getWidth()) {
+                continue; // Never upscale, the original is served instead
+            }
+            Path target = imageStore.resolveDerivative(storedImage.hash(), variant(width, format));
+            start = System.nanoTime();
+            source = scale(source, width, "png".equals(format));
+            scaleTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (Files.exists(target)) {
+                continue;
+            }
+            start = System.nanoTime();
+            write(source, format, target);
+            encodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Decodes an image, subsampling while reading so huge scans never sit in memory at full size.
+     */
+    private BufferedImage decode(Path file, int maxWidth) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, reader.getWidth(0) / (2 * maxWidth));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the width of an image from its header, without decoding it.
+     *
+     * @return the width in pixels, or UNDECODABLE if no reader understands the file
+     */
+    private static int readWidth(Path file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return UNDECODABLE;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return reader.getWidth(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read the width of image {}", file.getFileName(), e);
+            return UNDECODABLE;
+        }
+    }
+
+    private BufferedImage scale(BufferedImage source, int width, boolean keepAlpha) {
+        int height = Math.max(1, (int) Math.round((double) source.getHeight() * width / source.getWidth()));
+        BufferedImage scaled = new BufferedImage(width, height,
+                keepAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Encodes the derivative to a temporary file and renames it, so it is never served half written.
+     */
+    private void write(BufferedImage image, String format, Path target) throws IOException {
+        Path temp = Files.createTempFile(imageStore.tmpDir(), "derivative-", ".part");
+        try {
+            encode(image, format, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encodes an image to a file, as JPEG with the derivative quality or as PNG.
+     *
+     * @param image  the image to encode
+     * @param format "jpg" or "png", as returned by {@link #derivativeFormat}
+     * @param file   the file to write
+     * @throws IOException if the file cannot be written
+     */
+    static void encode(BufferedImage image, String format, Path file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Format of the derivatives of an image, or null if the JDK cannot decode it.
+     */
+    static String derivativeFormat(String contentType) {
+        if (MediaType.IMAGE_JPEG_VALUE.equals(contentType) || "image/bmp".equals(contentType)) {
+            return "jpg";
+        }
+        if (MediaType.IMAGE_PNG_VALUE.equals(contentType) || MediaType.IMAGE_GIF_VALUE.equals(contentType)) {
+            return "png";
+        }
+        return null;
+    }
+
+    private static String variant(int width, String format) {
+        return "w" + width + "." + format;
+    }
+
+    private static Timer stageTimer(MeterRegistry meterRegistry, String stage) {
+        return Timer.builder("trapo.images.derivatives.stage")
+                .description("Time spent in each stage of the derivative pipeline")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,324 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.StoredImage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits high-resolution picture images into a Deep Zoom (DZI) pyramid of 256x256 tiles,
+ * so viewers only download the part of the image they show at the zoom level they show it.
+ * The top level is decoded from the original in bands with ImageReadParam.setSourceRegion,
+ * and every lower level is built from the tiles of the level above, so the full image is never in memory.
+ * The JDK's JPEG and PNG readers cannot seek to a row: every band decodes the image again from the top.
+ * Bands are therefore as tall as trapo.images.tiles.band-pixels allows, so images up to that size are
+ * decoded once and larger ones (pixels / band-pixels) times, and images above
+ * trapo.images.tiles.max-pixels are not tiled at all, which bounds the decoding work per image.
+ * Pyramids are stored next to the original in the ImageStore as a "tiles" directory.
+ */
+@Service
+public class TileService {
+
+    private static final Logger log = LoggerFactory.getLogger(TileService.class);
+
+    public static final int TILE_SIZE = 256;
+    private static final String TILES_VARIANT = "tiles";
+    private static final String MANIFEST_FILE = "image.dzi";
+
+    private final ImageStore imageStore;
+    private final int minSize;
+    private final long bandPixels;
+    private final long maxPixels;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+    // Images checked and found too small to need a pyramid, or too large to build one
+    private final Set<String> untiled = ConcurrentHashMap.newKeySet();
+
+    private final Timer buildTimer;
+    private final Counter failures;
+
+    public TileService(ImageStore imageStore, MeterRegistry meterRegistry,
+                       @Value("${trapo.images.tiles.min-size:2048}") int minSize,
+                       @Value("${trapo.images.tiles.band-pixels:16777216}") long bandPixels,
+                       @Value("${trapo.images.tiles.max-pixels:268435456}") long maxPixels,
+                       @Value("${trapo.images.tiles.queue:100}") int queueCapacity) {
+        this.imageStore = imageStore;
+        this.minSize = minSize;
+        this.bandPixels = bandPixels;
+        this.maxPixels = maxPixels;
+        // A single thread: pyramids of large scans are memory hungry, one at a time is enough
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "image-tiles");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.buildTimer = Timer.builder("trapo.images.tiles.build")
+                .description("Time spent building the tile pyramid of an image")
+                .register(meterRegistry);
+        this.failures = Counter.builder("trapo.images.tiles.failures")
+                .description("Images whose tile pyramid could not be built")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queues the generation of the tile pyramid of an image. Does nothing if the pyramid exists,
+     * the image is too small to need one, it is already queued, or the queue is full.
+     *
+     * @param storedImage the original image
+     */
+    public void requestTiles(StoredImage storedImage) {
+        if (storedImage == null || ThumbnailService.derivativeFormat(storedImage.contentType()) == null
+                || untiled.contains(storedImage.hash()) || Files.exists(manifestPath(storedImage))
+                || !inProgress.add(storedImage.hash())) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    buildTimer.record(() -> {
+                        try {
+                            buildPyramid(storedImage);
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    failures.increment();
+                    log.warn("Could not build the tiles of image {}", storedImage.hash(), e);
+                } finally {
+                    inProgress.remove(storedImage.hash());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inProgress.remove(storedImage.hash());
+            log.debug("Tile queue full, skipping image {}", storedImage.hash());
+        }
+    }
+
+    /**
+     * Whether an image is known to be too small or too large to be tiled, so its manifest will never exist.
+     *
+     * @param storedImage the original image
+     * @return true if viewers should use the plain image instead
+     */
+    public boolean isUntiled(StoredImage storedImage) {
+        return ThumbnailService.derivativeFormat(storedImage.contentType()) == null
+                || untiled.contains(storedImage.hash());
+    }
+
+    /**
+     * Resolves the DZI manifest of an image, which only exists once the whole pyramid has been built.
+     *
+     * @param storedImage the original image
+     * @return the path of the manifest
+     */
+    public Path manifestPath(StoredImage storedImage) {
+        return tilesDir(storedImage).resolve(MANIFEST_FILE);
+    }
+
+    /**
+     * Resolves a tile of the pyramid of an image, which may not exist.
+     *
+     * @param storedImage the original image
+     * @param level       the pyramid level, 0 being a single pixel
+     * @param x           the column of the tile
+     * @param y           the row of the tile
+     * @return the path of the tile
+     */
+    public Path tilePath(StoredImage storedImage, int level, int x, int y) {
+        return tilePath(tilesDir(storedImage), level, x, y, ThumbnailService.derivativeFormat(storedImage.contentType()));
+    }
+
+    private Path tilesDir(StoredImage storedImage) {
+        return imageStore.resolveDerivative(storedImage.hash(), TILES_VARIANT);
+    }
+
+    private static Path tilePath(Path dir, int level, int x, int y, String format) {
+        return dir.resolve(Integer.toString(level)).resolve(x + "_" + y + "." + format);
+    }
+
+    private void buildPyramid(StoredImage storedImage) throws IOException {
+        String format = ThumbnailService.derivativeFormat(storedImage.contentType());
+        Path original = imageStore.resolve(storedImage.hash());
+        Path target = tilesDir(storedImage);
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(original.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return;
+            }
+            ImageReader reader = readers.next();
+            Path work = Files.createTempDirectory(imageStore.tmpDir(), "tiles-");
+            try {
+                reader.setInput(in, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (Math.max(width, height) < minSize) {
+                    untiled.add(storedImage.hash());
+                    return;
+                }
+                if ((long) width * height > maxPixels) {
+                    untiled.add(storedImage.hash());
+                    log.info("Image {} is too large to be tiled ({}x{})", storedImage.hash(), width, height);
+                    return;
+                }
+
+                int maxLevel = maxLevel(width, height);
+                writeTopLevel(reader, work, maxLevel, width, height, format);
+                for (int level = maxLevel - 1; level >= 0; level--) {
+                    writeLevel(work, level, maxLevel, width, height, format);
+                }
+                Files.writeString(work.resolve(MANIFEST_FILE), manifest(width, height, format), StandardCharsets.UTF_8);
+
+                // The pyramid appears at once, a viewer never sees a manifest without all its tiles
+                try {
+                    Files.move(work, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    if (!Files.exists(target.resolve(MANIFEST_FILE))) {
+                        throw e;
+                    }
+                }
+            } finally {
+                reader.dispose();
+                ImageStore.deleteRecursively(work);
+            }
+        }
+    }
+
+    /**
+     * Writes the full resolution level, decoding the original one band of tile rows at a time.
+     * Each band is decoded from the top of the image, so the bands are made as tall as the budget allows.
+     */
+    private void writeTopLevel(ImageReader reader, Path work, int level, int width, int height, String format)
+            throws IOException {
+        Files.createDirectories(work.resolve(Integer.toString(level)));
+        int rowsPerBand = bandRows(width, bandPixels);
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int bandY = 0; bandY * TILE_SIZE < height; bandY += rowsPerBand) {
+            int bandTop = bandY * TILE_SIZE;
+            int bandHeight = Math.min(rowsPerBand * TILE_SIZE, height - bandTop);
+            param.setSourceRegion(new Rectangle(0, bandTop, width, bandHeight));
+            BufferedImage band = reader.read(0, param);
+            for (int y = bandY; y < bandY + rowsPerBand && y * TILE_SIZE < height; y++) {
+                int stripTop = y * TILE_SIZE - bandTop;
+                int stripHeight = Math.min(TILE_SIZE, bandHeight - stripTop);
+                for (int x = 0; x * TILE_SIZE < width; x++) {
+                    int tileWidth = Math.min(TILE_SIZE, width - x * TILE_SIZE);
+                    BufferedImage tile = copy(band.getSubimage(x * TILE_SIZE, stripTop, tileWidth, stripHeight), format);
+                    ThumbnailService.encode(tile, format, tilePath(work, level, x, y, format));
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of tile rows decoded together, at least one whatever the budget.
+     */
+    static int bandRows(int width, long bandPixels) {
+        return (int) Math.max(1, bandPixels / ((long) width * TILE_SIZE));
+    }
+
+    /**
+     * Writes a lower level, each tile being the four tiles below it scaled to half their size.
+     */
+    private void writeLevel(Path work, int level, int maxLevel, int width, int height, String format)
+            throws IOException {
+        Files.createDirectories(work.resolve(Integer.toString(level)));
+        int levelWidth = levelSize(width, maxLevel - level);
+        int levelHeight = levelSize(height, maxLevel - level);
+        for (int y = 0; y * TILE_SIZE < levelHeight; y++) {
+            for (int x = 0; x * TILE_SIZE < levelWidth; x++) {
+                int tileWidth = Math.min(TILE_SIZE, levelWidth - x * TILE_SIZE);
+                int tileHeight = Math.min(TILE_SIZE, levelHeight - y * TILE_SIZE);
+                BufferedImage tile = new BufferedImage(tileWidth, tileHeight, imageType(format));
+                Graphics2D graphics = tile.createGraphics();
+                try {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            Path child = tilePath(work, level + 1, 2 * x + dx, 2 * y + dy, format);
+                            if (Files.exists(child)) {
+                                BufferedImage source = ImageIO.read(child.toFile());
+                                graphics.drawImage(source, dx * TILE_SIZE / 2, dy * TILE_SIZE / 2,
+                                        (source.getWidth() + 1) / 2, (source.getHeight() + 1) / 2, null);
+                            }
+                        }
+                    }
+                } finally {
+                    graphics.dispose();
+                }
+                ThumbnailService.encode(tile, format, tilePath(work, level, x, y, format));
+            }
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage region, String format) {
+        // Subimages share the strip's raster, encoders need an image of their own
+        BufferedImage tile = new BufferedImage(region.getWidth(), region.getHeight(), imageType(format));
+        Graphics2D graphics = tile.createGraphics();
+        try {
+            graphics.drawImage(region, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return tile;
+    }
+
+    private static int imageType(String format) {
+        return "png".equals(format) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    }
+
+    /**
+     * Number of the full resolution level: level 0 is 1x1 and every level doubles the previous one.
+     */
+    static int maxLevel(int width, int height) {
+        int max = Math.max(width, height);
+        return max <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(max - 1);
+    }
+
+    private static int levelSize(int size, int halvings) {
+        return Math.max(1, (int) Math.ceil(size / Math.pow(2, halvings)));
+    }
+
+    private static String manifest(int width, int height, String format) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"" + TILE_SIZE
+                + "\" Overlap=\"0\" Format=\"" + format + "\">\n"
+                + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                + "</Image>\n";
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
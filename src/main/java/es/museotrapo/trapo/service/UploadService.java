@@ -0,0 +1,347 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.UploadSessionDTO;
+import es.museotrapo.trapo.exceptions.UploadOffsetMismatchException;
+import es.museotrapo.trapo.model.StoredImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable, chunked uploads of picture images.
+ * A client opens a session, sends the image in byte ranges (in as many requests as needed,
+ * resuming from the offset reported by the server after a dropped connection) and completes it
+ * with the SHA-256 of the whole image. Chunks are written straight into the ImageStore's scratch
+ * directory and hashed as they arrive, so completing a session never reads the image again.
+ * Open sessions are capped per user and in total, as each one holds a scratch file until it is
+ * completed or times out.
+ */
+@Service
+public class UploadService {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadService.class);
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("^bytes (\\d+)-(\\d+)/(\\d+|\\*)$");
+    private static final String TEMP_PREFIX = "chunked-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    private ImageStore imageStore;
+
+    @Autowired
+    private ImageReferenceService imageReferenceService;
+
+    @Autowired
+    private PictureService pictureService;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final long maxBytes;
+    private final Duration idleTimeout;
+    private final int maxSessions;
+    private final int maxSessionsPerOwner;
+
+    public UploadService(@Value("${trapo.uploads.max-bytes:209715200}") long maxBytes,
+                         @Value("${trapo.uploads.idle-timeout:PT1H}") Duration idleTimeout,
+                         @Value("${trapo.uploads.max-sessions:100}") int maxSessions,
+                         @Value("${trapo.uploads.max-sessions-per-owner:4}") int maxSessionsPerOwner) {
+        this.maxBytes = maxBytes;
+        this.idleTimeout = idleTimeout;
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerOwner = maxSessionsPerOwner;
+    }
+
+    /**
+     * Opens an upload session for the image of a picture.
+     *
+     * @param pictureId the ID of the picture that will receive the image
+     * @param length    the total size of the image, may be null if it is not known yet
+     * @param owner     the name of the user uploading the image
+     * @return the new session
+     * @throws IOException             if the scratch file cannot be created
+     * @throws NoSuchElementException  if the picture does not exist
+     * @throws ResponseStatusException 429 if the user or the server already has too many open sessions
+     */
+    public UploadSessionDTO createSession(Long pictureId, Long length, String owner) throws IOException {
+        pictureService.getPicture(pictureId); // Fails with 404 if the picture does not exist
+        if (length != null) {
+            checkLength(length);
+        }
+        // Sessions are only removed concurrently, so the counts cannot grow past the caps while checked
+        synchronized (sessions) {
+            if (sessions.size() >= maxSessions) {
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many uploads in progress");
+            }
+            long owned = sessions.values().stream().filter(session -> session.owner.equals(owner)).count();
+            if (owned >= maxSessionsPerOwner) {
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                        "Too many uploads in progress, complete or cancel one first");
+            }
+            Path file = Files.createTempFile(imageStore.tmpDir(), TEMP_PREFIX, ".part");
+            UploadSession session = new UploadSession(UUID.randomUUID().toString(), pictureId, owner, file, length);
+            sessions.put(session.id, session);
+            return session.toDTO();
+        }
+    }
+
+    /**
+     * Returns the state of a session, so an interrupted client knows where to resume.
+     *
+     * @param pictureId the ID of the picture
+     * @param uploadId  the ID of the session
+     * @param owner     the name of the user uploading the image
+     * @return the session, with the number of bytes received so far
+     * @throws NoSuchElementException if the session does not exist or belongs to someone else
+     */
+    public UploadSessionDTO getSession(Long pictureId, String uploadId, String owner) {
+        UploadSession session = findSession(pictureId, uploadId, owner);
+        session.touch();
+        return session.toDTO();
+    }
+
+    /**
+     * Appends a chunk to a session. The chunk must start exactly at the current offset.
+     * If the connection drops halfway, the bytes received so far are kept.
+     *
+     * @param pictureId    the ID of the picture
+     * @param uploadId     the ID of the session
+     * @param owner        the name of the user uploading the image
+     * @param contentRange the Content-Range of the chunk, e.g. "bytes 0-1048575/52428800"
+     * @param in           the chunk content
+     * @return the session after the chunk has been written
+     * @throws IOException                   if the chunk cannot be read or written
+     * @throws UploadOffsetMismatchException if the chunk does not start at the current offset
+     */
+    public UploadSessionDTO writeChunk(Long pictureId, String uploadId, String owner, String contentRange,
+                                       InputStream in) throws IOException {
+        Matcher range = contentRange != null ? CONTENT_RANGE.matcher(contentRange) : null;
+        if (range == null || !range.matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Content-Range must be bytes start-end/total");
+        }
+        long start = Long.parseLong(range.group(1));
+        long end = Long.parseLong(range.group(2));
+        Long total = "*".equals(range.group(3)) ? null : Long.parseLong(range.group(3));
+        if (end < start || (total != null && end >= total)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid Content-Range");
+        }
+
+        UploadSession session = findSession(pictureId, uploadId, owner);
+        session.lock.lock();
+        try {
+            if (!sessions.containsKey(uploadId)) {
+                throw new NoSuchElementException(); // Completed or cancelled while waiting for the lock
+            }
+            session.touch();
+            if (start != session.offset) {
+                throw new UploadOffsetMismatchException("Chunk must start at the current offset", session.offset);
+            }
+            if (total != null) {
+                if (session.length != null && !session.length.equals(total)) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Total length changed");
+                }
+                checkLength(total);
+                session.length = total;
+            }
+            checkLength(end + 1);
+            if (session.length != null && end >= session.length) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Chunk ends after the image");
+            }
+
+            long remaining = end - start + 1;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (FileChannel channel = FileChannel.open(session.file, StandardOpenOption.WRITE)) {
+                channel.position(session.offset);
+                int read;
+                while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    // Only bytes that reached the file are hashed and counted
+                    session.digest.update(buffer, 0, read);
+                    session.offset += read;
+                    remaining -= read;
+                }
+            }
+            session.touch();
+            return session.toDTO();
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Completes a session: verifies the checksum, moves the image to its final address in the
+     * ImageStore and associates it with the picture, like a single-request upload would.
+     *
+     * @param pictureId the ID of the picture
+     * @param uploadId  the ID of the session
+     * @param owner     the name of the user uploading the image
+     * @param sha256    the SHA-256 of the whole image, as computed by the client
+     * @param location  the URI of the picture image
+     * @throws IOException                   if the image cannot be moved into the store
+     * @throws UploadOffsetMismatchException if bytes are still missing
+     */
+    public void completeSession(Long pictureId, String uploadId, String owner, String sha256, URI location)
+            throws IOException {
+        UploadSession session = findSession(pictureId, uploadId, owner);
+        session.lock.lock();
+        try {
+            if (!sessions.containsKey(uploadId)) {
+                throw new NoSuchElementException(); // Completed or cancelled while waiting for the lock
+            }
+            if (session.length != null && session.offset != session.length) {
+                throw new UploadOffsetMismatchException("The upload is not complete", session.offset);
+            }
+            pictureService.getPicture(pictureId); // The picture may have been deleted meanwhile
+
+            String hash = HexFormat.of().formatHex(session.digest.digest());
+            if (!hash.equalsIgnoreCase(sha256)) {
+                discard(session);
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Checksum mismatch, upload discarded");
+            }
+            // Moves the file into the store, or drops it if an identical image is already there
+            StoredImage storedImage = imageReferenceService.acquire(new StagedImage(session.file, hash, session.offset));
+            discard(session);
+            // Gives the reference back itself if the picture is gone by now
+            pictureService.attachPictureImageREST(pictureId, location, storedImage);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a session and deletes the bytes received so far.
+     *
+     * @param pictureId the ID of the picture
+     * @param uploadId  the ID of the session
+     * @param owner     the name of the user uploading the image
+     */
+    public void cancelSession(Long pictureId, String uploadId, String owner) {
+        UploadSession session = findSession(pictureId, uploadId, owner);
+        session.lock.lock();
+        try {
+            discard(session);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Garbage-collects sessions that received nothing for longer than the idle timeout,
+     * and scratch files left behind by sessions lost in a restart.
+     */
+    @Scheduled(fixedDelayString = "${trapo.uploads.gc-interval:PT5M}")
+    public void collectIdleSessions() {
+        long deadline = System.currentTimeMillis() - idleTimeout.toMillis();
+        for (UploadSession session : sessions.values()) {
+            // A session whose lock is taken is receiving a chunk right now
+            if (session.lastActivity < deadline && session.lock.tryLock()) {
+                try {
+                    discard(session);
+                    log.info("Discarded idle upload {} of picture {}", session.id, session.pictureId);
+                } finally {
+                    session.lock.unlock();
+                }
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(imageStore.tmpDir(), TEMP_PREFIX + "*")) {
+            for (Path file : files) {
+                boolean inUse = sessions.values().stream().anyMatch(session -> session.file.equals(file));
+                if (!inUse && Files.getLastModifiedTime(file).toMillis() < deadline) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not clean up abandoned upload files", e);
+        }
+    }
+
+    private UploadSession findSession(Long pictureId, String uploadId, String owner) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.pictureId.equals(pictureId) || !session.owner.equals(owner)) {
+            throw new NoSuchElementException("Upload not found: " + uploadId);
+        }
+        return session;
+    }
+
+    private void checkLength(long length) {
+        if (length > maxBytes) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Image larger than " + maxBytes + " bytes");
+        }
+    }
+
+    private void discard(UploadSession session) {
+        sessions.remove(session.id);
+        try {
+            Files.deleteIfExists(session.file);
+        } catch (IOException e) {
+            log.warn("Could not delete upload file {}", session.file, e);
+        }
+    }
+
+    /**
+     * State of an upload in progress. Only modified while holding its lock.
+     */
+    private static class UploadSession {
+
+        private final String id;
+        private final Long pictureId;
+        private final String owner;
+        private final Path file;
+        private final MessageDigest digest;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile Long length;
+        private volatile long offset;
+        private volatile long lastActivity;
+
+        UploadSession(String id, Long pictureId, String owner, Path file, Long length) {
+            this.id = id;
+            this.pictureId = pictureId;
+            this.owner = owner;
+            this.file = file;
+            this.length = length;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            touch();
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        UploadSessionDTO toDTO() {
+            return new UploadSessionDTO(id, pictureId, offset, length);
+        }
+    }
+}
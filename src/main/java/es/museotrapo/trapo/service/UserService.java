@@ -4,12 +4,13 @@ import es.museotrapo.trapo.dto.PictureDTO;
 import es.museotrapo.trapo.dto.UserDTO;
 import es.museotrapo.trapo.dto.UserMapper;
 import es.museotrapo.trapo.exceptions.UserAlreadyExistsException;
-import es.museotrapo.trapo.model.Comment;
-import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.PictureLikeId;
 import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.repository.PictureLikeRepository;
 import es.museotrapo.trapo.repository.PictureRepository;
 import es.museotrapo.trapo.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -17,10 +18,11 @@ import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.security.core.Authentication;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 @Service
 public class UserService {
@@ -35,6 +37,10 @@ public class UserService {
     private PasswordEncoder passwordEncoder;
     @Autowired
     private CommentService commentService;
+    @Autowired
+    private PictureLikeRepository pictureLikeRepository;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
 
     /**
      * Returns the logged-in username for simplicity. This is a placeholder method.
@@ -83,28 +89,38 @@ public class UserService {
     }
 
     /**
-     * Retrieves a user by their username.
+     * Likes a picture for the logged-in user, or removes the like if there already was one.
+     * When two toggles of the same user race, the picture ends up liked and counted once.
      *
-     * @param username - The username of the user to retrieve
-     * @return User - The user with the specified username
+     * @param pictureDTO - The picture to like or unlike
+     * @throws NoSuchElementException if the picture does not exist
      */
     public void likeOrRemovePicture(PictureDTO pictureDTO) {
-
-        Picture picture = pictureRepository.findById(pictureDTO.id()).get();
+        Long pictureId = pictureDTO.id();
         User user = getLoggedUser();// Get the logged-in username
+        try {
+            transactionTemplate.executeWithoutResult(status -> toggleLike(pictureId, user.getId()));
+        } catch (DataIntegrityViolationException e) {
+            // A concurrent request of the same user (double click, second tab) inserted the like
+            // first and this one was rolled back: the picture is liked, and counted once
+            if (!pictureLikeRepository.existsById(new PictureLikeId(pictureId, user.getId()))) {
+                throw e;
+            }
+        }
+    }
 
-        // Check if the username already likes the picture
-        if (user.getLikedPictures().contains(picture)) {
-            // If liked, remove the like
-            user.getLikedPictures().remove(picture);
-            picture.getUserLikes().remove(user);
+    private void toggleLike(Long pictureId, Long userId) {
+        if (!pictureRepository.existsById(pictureId)) {
+            throw new NoSuchElementException("Picture not found: " + pictureId);
+        }
+        // Remove the like if there was one, otherwise add it. Each is a single row,
+        // the other likes of the picture are never read nor rewritten
+        if (pictureLikeRepository.deleteLike(pictureId, userId) > 0) {
+            pictureRepository.decrementLikeCount(pictureId);
         } else {
-            // If not liked, add the like
-            user.getLikedPictures().add(picture);
-            picture.getUserLikes().add(user);
+            pictureLikeRepository.insertLike(pictureId, userId); // Fails if a concurrent toggle inserted it
+            pictureRepository.incrementLikeCount(pictureId);
         }
-        pictureRepository.save(picture);
-        userRepository.save(user);// Save the updated user and picture back to the repository
     }
 
     /**
@@ -116,7 +132,7 @@ public class UserService {
     public boolean isPictureLiked(PictureDTO pictureDTO) {
         User user = getLoggedUser();// Get the logged-in username
         if(user == null) return false;
-        return user.getLikedPictures().contains(pictureRepository.findById(pictureDTO.id()).get());// Return whether the picture is in the username's liked list
+        return pictureLikeRepository.existsById(new PictureLikeId(pictureDTO.id(), user.getId()));// Return whether the username likes the picture
     }
 
     /**
@@ -135,29 +151,26 @@ public class UserService {
     }
 
     /**
-     * Checks if the logged-in user is an admin.
+     * Removes a user with its likes, comments and roles.
+     * Everything is removed with a fixed number of set-based statements, whatever the activity
+     * of the user: neither its likes nor its comments are loaded, and the counters of the
+     * pictures it liked or commented are adjusted in bulk.
      *
-     * @return boolean - True if the user is an admin, false otherwise
+     * @param id the ID of the user to remove
+     * @throws NoSuchElementException if the user does not exist
      */
     @Transactional
     public void remove(Long id) {
-        User user = userRepository.findById(id).orElseThrow();
-        List<Picture> pictures = user.getLikedPictures();
-        int num1 = pictures.size();
-        for (int i = 0; i < num1; i++) {
-            Picture picture = pictures.get(i);
-            picture.getUserLikes().remove(user);
-            user.getLikedPictures().remove(picture);
-            pictureRepository.save(picture);
+        if (!userRepository.existsById(id)) {
+            throw new NoSuchElementException("User not found: " + id);
         }
-        List<Comment> comments = user.getComments();
-        int num = comments.size();
-        for (int i = 0; i < num; i++) {
-            Comment comment = comments.get(0);
-            commentService.deleteCommentHelp(comment.getId(), comment.getPicture().getId());
-        }
-        userRepository.save(user);
-        userRepository.deleteById(id);
+        // Counters first, they are computed from the rows about to be deleted
+        pictureRepository.decrementLikeCountsOfUser(id);
+        pictureRepository.decrementCommentCountsOfUser(id);
+        pictureLikeRepository.deleteByUser(id);
+        commentService.deleteCommentsOfUser(id);
+        userRepository.deleteRoles(id);
+        userRepository.deleteByIdCustom(id);
     }
 
     /**
@@ -171,7 +184,6 @@ public class UserService {
 
         newUser.setRoles(oldUser.getRoles());
         newUser.setEncodedPassword(passwordEncoder.encode(password));
-        newUser.setLikedPictures(oldUser.getLikedPictures());
         newUser.setComments(oldUser.getComments());
         newUser.setId( oldUser.getId());
         userRepository.save(newUser);
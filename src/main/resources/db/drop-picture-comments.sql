@@ -0,0 +1,2 @@
+-- Comments are owned by comment.picture_id, the join table kept by the old mapping is not used anymore
+DROP TABLE IF EXISTS picture_comments;
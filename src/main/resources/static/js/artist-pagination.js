@@ -1,5 +1,3 @@
-let currentPage = 1;
-
 document.addEventListener("DOMContentLoaded", function () {
     const loadMoreBtn = document.getElementById("load-more");
     const spinner = document.getElementById("spinner");
@@ -8,23 +6,31 @@ document.addEventListener("DOMContentLoaded", function () {
         loadMoreBtn.addEventListener("click", function () {
             spinner.style.display = "inline-block";
 
-            fetch(`/artists/more?page=${currentPage}`)
+            // Keep the search filters of the page and continue after its last artist
+            const params = new URLSearchParams(window.location.search);
+            params.set("cursor", loadMoreBtn.dataset.next);
+
+            fetch(`/artists/more?${params}`)
                 .then(response => response.json())
-                .then(artists => {
+                .then(page => {
                     const list = document.getElementById("artist-list");
 
-                    artists.forEach(artist => {
+                    page.content.forEach(artist => {
                         const div = document.createElement("div");
                         div.className = "artist-card";
-                        div.innerHTML = `<a href="/artists/${artist.id}" class="btn-wine">${artist.nickname}</a>`;
+                        const link = document.createElement("a");
+                        link.href = `/artists/${artist.id}`;
+                        link.className = "btn-wine";
+                        link.textContent = artist.nickname;
+                        div.appendChild(link);
                         list.appendChild(div);
                     });
 
-                    if (artists.length < 3) {
+                    if (page.hasNext) {
+                        loadMoreBtn.dataset.next = page.next;
+                    } else {
                         loadMoreBtn.style.display = "none";
                     }
-
-                    currentPage++;
                 })
                 .catch(error => console.error("Error al cargar más artistas:", error))
                 .finally(() => {
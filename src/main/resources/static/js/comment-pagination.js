@@ -0,0 +1,61 @@
+document.addEventListener("DOMContentLoaded", function () {
+    const loadMoreBtn = document.getElementById("load-more-comments");
+    const spinner = document.getElementById("comments-spinner");
+
+    if (loadMoreBtn) {
+        loadMoreBtn.addEventListener("click", function () {
+            spinner.style.display = "inline-block";
+
+            const list = document.getElementById("comment-list");
+            const pictureId = list.dataset.picture;
+            const params = new URLSearchParams({cursor: loadMoreBtn.dataset.next});
+
+            fetch(`/pictures/${pictureId}/comments?${params}`)
+                .then(response => response.json())
+                .then(page => {
+                    page.content.forEach(comment => {
+                        const div = document.createElement("div");
+                        div.className = "comment";
+
+                        const author = document.createElement("b");
+                        author.textContent = comment.nameAuthor;
+                        div.appendChild(author);
+                        div.appendChild(document.createTextNode(": "));
+
+                        // Messages are sanitized when they are saved, like the ones rendered by the server
+                        const message = document.createElement("span");
+                        message.innerHTML = comment.message;
+                        div.appendChild(message);
+
+                        if ("logged" in list.dataset) {
+                            const form = document.createElement("form");
+                            form.action = `/pictures/${pictureId}/comments/${comment.id}/delete`;
+                            form.method = "post";
+                            const token = document.createElement("input");
+                            token.type = "hidden";
+                            token.name = "_csrf";
+                            token.value = list.dataset.token;
+                            const button = document.createElement("button");
+                            button.type = "submit";
+                            button.className = "btn btn-delete";
+                            button.textContent = "Eliminar";
+                            form.appendChild(token);
+                            form.appendChild(button);
+                            div.appendChild(form);
+                        }
+                        list.appendChild(div);
+                    });
+
+                    if (page.hasNext) {
+                        loadMoreBtn.dataset.next = page.next;
+                    } else {
+                        loadMoreBtn.style.display = "none";
+                    }
+                })
+                .catch(error => console.error("Error al cargar más comentarios:", error))
+                .finally(() => {
+                    spinner.style.display = "none";
+                });
+        });
+    }
+});
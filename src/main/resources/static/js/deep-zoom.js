@@ -0,0 +1,41 @@
+document.addEventListener("DOMContentLoaded", function () {
+    const viewer = document.getElementById("deep-zoom");
+    const zoomBtn = document.getElementById("deep-zoom-btn");
+
+    if (!viewer || !zoomBtn) {
+        return;
+    }
+
+    const pictureId = viewer.dataset.picture;
+    const version = viewer.dataset.version;
+
+    // Only large pictures have a tile pyramid, the button stays hidden for the rest
+    fetch(`/api/pictures/${pictureId}/tiles?v=${version}`)
+        .then(response => response.ok ? response.text() : Promise.reject(response.status))
+        .then(manifest => {
+            const image = new DOMParser().parseFromString(manifest, "application/xml").documentElement;
+            const size = image.getElementsByTagName("Size")[0];
+            const width = parseInt(size.getAttribute("Width"));
+            const height = parseInt(size.getAttribute("Height"));
+
+            zoomBtn.style.display = "inline-block";
+            zoomBtn.addEventListener("click", function () {
+                zoomBtn.style.display = "none";
+                viewer.style.display = "block";
+                OpenSeadragon({
+                    element: viewer,
+                    prefixUrl: "https://cdn.jsdelivr.net/npm/openseadragon@4.1.1/build/openseadragon/images/",
+                    tileSources: {
+                        width: width,
+                        height: height,
+                        tileSize: parseInt(image.getAttribute("TileSize")),
+                        tileOverlap: parseInt(image.getAttribute("Overlap")),
+                        getTileUrl: (level, x, y) => `/api/pictures/${pictureId}/tiles/${level}/${x}/${y}?v=${version}`
+                    }
+                });
+            });
+        })
+        .catch(() => {
+            // Small picture or tiles not generated yet, the image above is enough
+        });
+});
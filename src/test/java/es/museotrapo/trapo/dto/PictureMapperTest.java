@@ -0,0 +1,67 @@
+package es.museotrapo.trapo.dto;
+
+import es.museotrapo.trapo.model.Artist;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.repository.BulkSeeder;
+import es.museotrapo.trapo.repository.PictureRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Mapping a picture must not load the users who like it, one query per like.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import(PictureMapperImpl.class)
+class PictureMapperTest {
+
+    private static final int LIKES = 1_000;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureMapper pictureMapper;
+
+    private Picture picture;
+
+    @BeforeEach
+    void setUp() {
+        picture = new Picture("Popular", "2025");
+        picture.setArtist(entityManager.persist(new Artist("Painter", "painter", "1900")));
+        picture = entityManager.persist(picture);
+        entityManager.flush();
+
+        new BulkSeeder(entityManager, pictureRepository)
+                .users(1_000_000, "fan", LIKES)
+                .likes(picture.getId(), 1_000_000, LIKES)
+                .done();
+    }
+
+    @Test
+    void likesAreCountedNotLoaded() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        Picture loaded = pictureRepository.findById(picture.getId()).orElseThrow();
+
+        statistics.clear();
+        PictureDTO pictureDTO = pictureMapper.toDTO(loaded);
+
+        // At most the artist, whatever the number of likes
+        assertEquals(1, statistics.getPrepareStatementCount(), "statements while mapping");
+        assertEquals(LIKES, pictureDTO.likeCount());
+    }
+}
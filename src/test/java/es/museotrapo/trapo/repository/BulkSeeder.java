@@ -0,0 +1,83 @@
+package es.museotrapo.trapo.repository;
+
+import jakarta.persistence.EntityManager;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+
+/**
+ * Inserts thousands of users, comments and likes with one native statement each, through H2's
+ * SYSTEM_RANGE, instead of persisting them one by one. Call {@link #done()} once seeded so the
+ * counters of the pictures match the rows and the persistence context is left empty.
+ */
+public class BulkSeeder {
+
+    private final TestEntityManager entityManager;
+    private final PictureRepository pictureRepository;
+
+    public BulkSeeder(TestEntityManager entityManager, PictureRepository pictureRepository) {
+        this.entityManager = entityManager;
+        this.pictureRepository = pictureRepository;
+    }
+
+    /**
+     * Inserts users with IDs {@code firstId + 1} to {@code firstId + count}.
+     *
+     * @param firstId the ID before the first user
+     * @param name    the prefix of their names
+     * @param count   the number of users
+     */
+    public BulkSeeder users(long firstId, String name, int count) {
+        em().createNativeQuery("INSERT INTO usertable (id, name) SELECT :first + x, :name || x FROM SYSTEM_RANGE(1, :count)")
+                .setParameter("first", firstId)
+                .setParameter("name", name)
+                .setParameter("count", count)
+                .executeUpdate();
+        return this;
+    }
+
+    /**
+     * Makes the users with IDs {@code firstUserId + 1} to {@code firstUserId + count} like a picture.
+     *
+     * @param pictureId   the ID of the picture
+     * @param firstUserId the ID before the first user
+     * @param count       the number of likes
+     */
+    public BulkSeeder likes(long pictureId, long firstUserId, int count) {
+        em().createNativeQuery("INSERT INTO picture_like (picture_id, user_id) SELECT :picture, :first + x FROM SYSTEM_RANGE(1, :count)")
+                .setParameter("picture", pictureId)
+                .setParameter("first", firstUserId)
+                .setParameter("count", count)
+                .executeUpdate();
+        return this;
+    }
+
+    /**
+     * Inserts comments of a user on a picture with IDs {@code firstId + 1} to {@code firstId + count}.
+     *
+     * @param pictureId the ID of the picture
+     * @param authorId  the ID of the author
+     * @param firstId   the ID before the first comment
+     * @param count     the number of comments
+     */
+    public BulkSeeder comments(long pictureId, long authorId, long firstId, int count) {
+        em().createNativeQuery("INSERT INTO comment (id, message, author_id, picture_id) "
+                        + "SELECT :first + x, 'Comment ' || x, :author, :picture FROM SYSTEM_RANGE(1, :count)")
+                .setParameter("first", firstId)
+                .setParameter("author", authorId)
+                .setParameter("picture", pictureId)
+                .setParameter("count", count)
+                .executeUpdate();
+        return this;
+    }
+
+    /**
+     * Recomputes the like and comment counters of every picture and detaches every entity.
+     */
+    public void done() {
+        pictureRepository.repairCounters();
+        entityManager.clear();
+    }
+
+    private EntityManager em() {
+        return entityManager.getEntityManager();
+    }
+}
@@ -0,0 +1,95 @@
+package es.museotrapo.trapo.repository;
+
+import es.museotrapo.trapo.model.Artist;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.PictureImage;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.Limit;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading pictures must never read the legacy image bytes stored for them: only the image
+ * download and the migration job may touch the picture_image table.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "es.museotrapo.trapo.repository.PictureImageRepositoryTest$RecordingInspector")
+class PictureImageRepositoryTest {
+
+    private static final int IMAGE_BYTES = 1024 * 1024;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureImageRepository pictureImageRepository;
+
+    private Picture picture;
+
+    @BeforeEach
+    void setUp() {
+        picture = new Picture("Legacy", "2025");
+        picture.setArtist(entityManager.persist(new Artist("Painter", "painter", "1900")));
+        picture = entityManager.persist(picture);
+        entityManager.persist(new PictureImage(picture, BlobProxy.generateProxy(new byte[IMAGE_BYTES])));
+        entityManager.flush();
+        entityManager.clear();
+        RecordingInspector.STATEMENTS.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        RecordingInspector.STATEMENTS.clear();
+    }
+
+    @Test
+    void picturesAreReadWithoutTheirLegacyImage() {
+        Picture loaded = pictureRepository.findById(picture.getId()).orElseThrow();
+        loaded.getArtist().getName();
+        pictureRepository.findListingsAfter(0, Limit.of(10));
+        pictureRepository.findAll();
+
+        assertFalse(RecordingInspector.STATEMENTS.isEmpty());
+        assertTrue(RecordingInspector.STATEMENTS.stream().noneMatch(sql -> sql.contains("picture_image")),
+                () -> "picture_image read by " + RecordingInspector.STATEMENTS);
+    }
+
+    @Test
+    void legacyImageIsOnlyReadWhenAskedFor() throws SQLException {
+        PictureImage image = pictureImageRepository.findById(picture.getId()).orElseThrow();
+
+        assertEquals(IMAGE_BYTES, image.getData().length());
+        assertEquals(List.of(picture.getId()), pictureImageRepository.findIdsPendingMigration());
+    }
+
+    /**
+     * Records every SQL statement Hibernate prepares, lower-cased and on a single line.
+     */
+    public static class RecordingInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ROOT));
+            return sql;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package es.museotrapo.trapo.security;
+
+import es.museotrapo.trapo.exceptions.PasswordCheckOverloadedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A flood of logins must not take the request threads away from browsing.
+ * A fixed pool stands for the Tomcat workers: it serves login requests, which check a password,
+ * and browsing requests, which only need a free worker.
+ */
+class BoundedPasswordEncoderTest {
+
+    private static final Logger log = LoggerFactory.getLogger(BoundedPasswordEncoderTest.class);
+
+    private static final int WORKERS = 16;
+    private static final int LOGINS = 100;
+    private static final int PAGE_VIEWS = 50;
+
+    private final BCryptPasswordEncoder bcrypt = new BCryptPasswordEncoder();
+    private final String hash = bcrypt.encode("adminpass");
+
+    // Takes about 15 seconds and compares wall-clock latencies, run with -Pbenchmarks
+    @Test
+    @Tag("benchmark")
+    void browsingStaysFastDuringALoginFlood() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        BoundedPasswordEncoder bounded = new BoundedPasswordEncoder(bcrypt, meterRegistry, 1, 4);
+        try {
+            long unboundedLatency = medianPageViewLatency(bcrypt, new AtomicInteger());
+            AtomicInteger refused = new AtomicInteger();
+            long boundedLatency = medianPageViewLatency(bounded, refused);
+            log.info("Median page view latency during {} logins: {} ms checking passwords on the request threads, "
+                            + "{} ms on the bounded pool ({} logins refused)",
+                    LOGINS, unboundedLatency / 1_000_000, boundedLatency / 1_000_000, refused.get());
+
+            assertTrue(refused.get() > 0);
+            assertTrue(boundedLatency < unboundedLatency);
+            assertEquals(refused.get(), (int) meterRegistry.counter("trapo.login.password.rejected").count());
+            assertEquals(LOGINS - refused.get(), meterRegistry.timer("trapo.login.password.hash").count());
+            assertEquals(LOGINS - refused.get(), meterRegistry.timer("trapo.login.password.queue").count());
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test
+    void passwordsAreStillChecked() {
+        BoundedPasswordEncoder bounded = new BoundedPasswordEncoder(bcrypt, new SimpleMeterRegistry(), 1, 4);
+        try {
+            assertTrue(bounded.matches("adminpass", hash));
+            assertFalse(bounded.matches("wrong", hash));
+            assertTrue(bounded.matches("newpass", bounded.encode("newpass")));
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test
+    void checksBeyondTheQueueAreRefusedAtOnce() throws Exception {
+        CountDownLatch checking = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PasswordEncoder blocked = new PasswordEncoder() {
+            @Override
+            public String encode(CharSequence rawPassword) {
+                return rawPassword.toString();
+            }
+
+            @Override
+            public boolean matches(CharSequence rawPassword, String encodedPassword) {
+                checking.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+        };
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        BoundedPasswordEncoder bounded = new BoundedPasswordEncoder(blocked, meterRegistry, 1, 1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            // One check running and one waiting fill the pool
+            Future<Boolean> running = callers.submit(() -> bounded.matches("adminpass", "adminpass"));
+            checking.await();
+            Future<Boolean> waiting = callers.submit(() -> bounded.matches("adminpass", "adminpass"));
+            while (meterRegistry.get("trapo.login.password.waiting").gauge().value() < 1) {
+                Thread.onSpinWait();
+            }
+
+            // Refused without waiting for the blocked check: it would never end otherwise
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+                    assertThrows(PasswordCheckOverloadedException.class, () -> bounded.matches("adminpass", "adminpass")));
+            assertEquals(1, (int) meterRegistry.counter("trapo.login.password.rejected").count());
+
+            release.countDown();
+            assertTrue(running.get());
+            assertTrue(waiting.get());
+        } finally {
+            release.countDown();
+            callers.shutdownNow();
+            bounded.shutdown();
+        }
+    }
+
+    /**
+     * Floods the workers with logins, then measures how long page views wait for a worker.
+     */
+    private long medianPageViewLatency(PasswordEncoder passwordEncoder, AtomicInteger refused) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        try {
+            List<Future<?>> logins = new ArrayList<>();
+            for (int i = 0; i < LOGINS; i++) {
+                logins.add(workers.submit(() -> {
+                    try {
+                        passwordEncoder.matches("guess", hash);
+                    } catch (PasswordCheckOverloadedException e) {
+                        refused.incrementAndGet();
+                    }
+                }));
+            }
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            List<Future<?>> pageViews = new ArrayList<>();
+            for (int i = 0; i < PAGE_VIEWS; i++) {
+                long submitted = System.nanoTime();
+                pageViews.add(workers.submit(() -> latencies.add(System.nanoTime() - submitted)));
+                Thread.sleep(2);
+            }
+            for (Future<?> pageView : pageViews) {
+                pageView.get();
+            }
+            for (Future<?> login : logins) {
+                login.get();
+            }
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(sorted.size() / 2);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
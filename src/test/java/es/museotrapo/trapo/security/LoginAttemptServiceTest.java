@@ -0,0 +1,168 @@
+package es.museotrapo.trapo.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Failed logins must only block the user and client they come from, and parallel logins must never
+ * get more guesses than the limit between them.
+ */
+class LoginAttemptServiceTest {
+
+    private static final Duration WINDOW = Duration.ofMinutes(10);
+    private static final int THREADS = 32;
+    private static final int ATTEMPTS_PER_THREAD = 1_000;
+
+    // Starts at the beginning of a window, so attempts are counted exactly until it moves
+    private final AtomicLong now = new AtomicLong(WINDOW.toMillis() * 1_000);
+
+    @Test
+    void parallelLoginsGetNoMoreAttemptsThanTheLimit() throws Exception {
+        int clientLimit = THREADS * ATTEMPTS_PER_THREAD / 4;
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, clientLimit, 100_000, now::get);
+        AtomicInteger victimAttempts = new AtomicInteger();
+        AtomicInteger clientAttempts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                // Every thread guesses the password of the same user, and of users of its own from a shared client
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < ATTEMPTS_PER_THREAD; i++) {
+                        if (service.tryAttempt("victim", "10.0.0.1")) {
+                            victimAttempts.incrementAndGet();
+                        }
+                        if (service.tryAttempt("user" + thread + "-" + i, "10.0.0.2")) {
+                            clientAttempts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Exactly the limits were granted: a single lost or extra update would show here
+        assertEquals(3, victimAttempts.get());
+        assertEquals(clientLimit, clientAttempts.get());
+        assertTrue(service.isBlocked("victim", "10.0.0.1"));
+        assertTrue(service.isBlocked("anyone", "10.0.0.2"));
+    }
+
+    @Test
+    void attemptsThatWereNotCheckedAreGivenBack() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 50, 100_000, now::get);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(service.tryAttempt("victim", "10.0.0.1"));
+            service.cancelAttempt("victim", "10.0.0.1");
+        }
+
+        assertFalse(service.isBlocked("victim", "10.0.0.1"));
+    }
+
+    @Test
+    void failuresOnlyBlockTheirUserAndClient() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 50, 100_000, now::get);
+
+        for (int i = 0; i < 3; i++) {
+            fail(service, "victim", "10.0.0.1");
+        }
+
+        assertFalse(service.tryAttempt("victim", "10.0.0.1"));
+        assertFalse(service.tryAttempt("VICTIM", "10.0.0.1"));
+        assertFalse(service.isBlocked("victim", "10.0.0.2"));
+        assertFalse(service.isBlocked("someone", "10.0.0.1"));
+    }
+
+    @Test
+    void aClientTryingManyUsersIsBlocked() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 50, 100_000, now::get);
+
+        for (int i = 0; i < 50; i++) {
+            fail(service, "user" + i, "10.0.0.1");
+        }
+
+        assertTrue(service.isBlocked("anyone", "10.0.0.1"));
+        assertFalse(service.isBlocked("anyone", "10.0.0.2"));
+    }
+
+    @Test
+    void failuresSlideOutOfTheWindow() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 50, 100_000, now::get);
+        for (int i = 0; i < 3; i++) {
+            fail(service, "victim", "10.0.0.1");
+        }
+        assertFalse(service.tryAttempt("victim", "10.0.0.1"));
+
+        // Half a window later, half of the previous window still counts: 1.5 of 3 failures
+        now.addAndGet(WINDOW.toMillis() * 3 / 2);
+        assertFalse(service.isBlocked("victim", "10.0.0.1"));
+        fail(service, "victim", "10.0.0.1");
+        assertFalse(service.isBlocked("victim", "10.0.0.1"));
+        fail(service, "victim", "10.0.0.1");
+        assertTrue(service.isBlocked("victim", "10.0.0.1"));
+
+        now.addAndGet(WINDOW.toMillis() * 2);
+        assertFalse(service.isBlocked("victim", "10.0.0.1"));
+    }
+
+    @Test
+    void successForgetsTheFailuresOfTheUserOnly() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 6, 100_000, now::get);
+        for (int i = 0; i < 2; i++) {
+            fail(service, "victim", "10.0.0.1");
+            fail(service, "other" + i, "10.0.0.1");
+        }
+
+        assertTrue(service.tryAttempt("victim", "10.0.0.1"));
+        service.registerLoginSuccess("victim", "10.0.0.1");
+        fail(service, "victim", "10.0.0.1");
+
+        assertFalse(service.isBlocked("victim", "10.0.0.1"));
+        // The failures of the client were kept: one more reaches its limit
+        fail(service, "other", "10.0.0.1");
+        assertTrue(service.isBlocked("someone", "10.0.0.1"));
+    }
+
+    @Test
+    void countersAreBoundedAndExpire() {
+        LoginAttemptService service = new LoginAttemptService(WINDOW, 3, 50, 1_000, now::get);
+
+        for (int i = 0; i < 10_000; i++) {
+            fail(service, "user" + i, "10.0." + (i / 256) + "." + (i % 256));
+        }
+        assertTrue(service.size() <= 1_000);
+
+        now.addAndGet(WINDOW.toMillis() * 2 + 1);
+        assertEquals(0, service.size());
+    }
+
+    /**
+     * A login whose password turned out to be wrong: its reserved attempt stays counted.
+     */
+    private static void fail(LoginAttemptService service, String username, String clientIp) {
+        assertTrue(service.tryAttempt(username, clientIp));
+    }
+}
@@ -0,0 +1,104 @@
+package es.museotrapo.trapo.security.jwt;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Nodes sharing a keyring must accept each other's tokens, also across a rotation.
+ */
+class FileKeyringTest {
+
+    private static final Duration WEEK = Duration.ofDays(7);
+
+    @TempDir
+    Path dir;
+
+    private final UserDetails user = new User("visitor", "encoded", AuthorityUtils.createAuthorityList("ROLE_USER"));
+
+    @Test
+    void tokensIssuedByOneNodeAreAcceptedByAnother() throws IOException {
+        FileKeyring keyringA = keyring(WEEK);
+        FileKeyring keyringB = keyring(WEEK);
+
+        String token = provider(keyringA).generateAccessToken(user);
+
+        assertEquals(keyringA.signingKey().id(), keyId(token));
+        assertEquals(keyringA.signingKey().id(), keyringB.signingKey().id());
+        assertEquals("visitor", provider(keyringB).validateToken(token).getSubject());
+    }
+
+    @Test
+    void theCurrentAndThePreviousKeyAreAccepted() throws IOException {
+        FileKeyring keyringA = keyring(WEEK);
+        FileKeyring keyringB = keyring(WEEK);
+        JwtTokenProvider nodeA = provider(keyringA);
+        JwtTokenProvider nodeB = provider(keyringB);
+        String oldToken = nodeA.generateAccessToken(user);
+
+        keyringA.rotate();
+        keyringB.refresh();
+        String newToken = nodeA.generateAccessToken(user);
+
+        assertNotEquals(keyId(oldToken), keyId(newToken));
+        assertEquals(keyringA.signingKey().id(), keyringB.signingKey().id());
+        nodeB.validateToken(oldToken);
+        nodeB.validateToken(newToken);
+
+        // A second rotation retires the key of the old token
+        keyringB.rotate();
+        keyringA.refresh();
+        assertThrows(RuntimeException.class, () -> nodeA.validateToken(oldToken));
+        nodeA.validateToken(newToken);
+    }
+
+    @Test
+    void keysAreRotatedOnceDue() throws IOException, InterruptedException {
+        FileKeyring fresh = keyring(WEEK);
+        String firstKey = fresh.signingKey().id();
+        fresh.refresh();
+        assertEquals(firstKey, fresh.signingKey().id());
+
+        FileKeyring due = new FileKeyring(dir.resolve("due").toString(), Duration.ofMillis(1), 2);
+        String dueKey = due.signingKey().id();
+        Thread.sleep(5);
+        due.refresh();
+        assertNotEquals(dueKey, due.signingKey().id());
+        assertNotNull(due.verificationKey(dueKey));
+    }
+
+    @Test
+    void tokensWithoutAKnownKeyAreRejected() throws IOException {
+        JwtTokenProvider node = provider(keyring(WEEK));
+        JwtTokenProvider stranger = provider(new FileKeyring(dir.resolve("other").toString(), WEEK, 2));
+
+        assertThrows(RuntimeException.class, () -> node.validateToken(stranger.generateAccessToken(user)));
+    }
+
+    private FileKeyring keyring(Duration rotationInterval) throws IOException {
+        return new FileKeyring(dir.resolve("keyring").toString(), rotationInterval, 2);
+    }
+
+    private static JwtTokenProvider provider(FileKeyring keyring) {
+        return new JwtTokenProvider(keyring, new VerifiedTokenCache(new SimpleMeterRegistry(), 0));
+    }
+
+    private static String keyId(String token) {
+        // Reads the header without verifying the token
+        String header = new String(Base64.getUrlDecoder().decode(token.substring(0, token.indexOf('.'))));
+        return header.replaceAll(".*\"kid\":\"([^\"]+)\".*", "$1");
+    }
+}
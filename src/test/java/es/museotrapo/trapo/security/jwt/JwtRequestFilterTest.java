@@ -0,0 +1,119 @@
+package es.museotrapo.trapo.security.jwt;
+
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Authenticated API requests must not load the user from the database in stateless mode.
+ * The UserDetailsService stands for the database: every call is a user query plus its roles.
+ */
+class JwtRequestFilterTest {
+
+    private static final int REQUESTS = 10_000;
+
+    @TempDir
+    static Path keys;
+
+    private final TokenDenyList tokenDenyList = new TokenDenyList();
+    private final UserDetailsService userDetailsService = mock(UserDetailsService.class);
+    private final UserDetails user = new User("visitor", "encoded",
+            AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN"));
+
+    private JwtTokenProvider jwtTokenProvider;
+    private String accessToken;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        jwtTokenProvider = new JwtTokenProvider(new FileKeyring(keys.resolve("keyring").toString(), Duration.ofDays(7), 2),
+                new VerifiedTokenCache(new SimpleMeterRegistry(), 10_000));
+        when(userDetailsService.loadUserByUsername(anyString())).thenReturn(user);
+        accessToken = jwtTokenProvider.generateAccessToken(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void statelessRequestsNeverLoadTheUser() throws Exception {
+        JwtRequestFilter filter = new JwtRequestFilter(userDetailsService, jwtTokenProvider, tokenDenyList, true);
+
+        for (int i = 0; i < REQUESTS; i++) {
+            Authentication authentication = authenticate(filter, accessToken);
+            assertEquals("visitor", authentication.getName());
+            assertEquals(Set.of("ROLE_USER", "ROLE_ADMIN"), names(authentication));
+        }
+
+        verifyNoInteractions(userDetailsService);
+    }
+
+    @Test
+    void statefulRequestsLoadTheUserEveryTime() throws Exception {
+        JwtRequestFilter filter = new JwtRequestFilter(userDetailsService, jwtTokenProvider, tokenDenyList, false);
+
+        for (int i = 0; i < REQUESTS; i++) {
+            authenticate(filter, accessToken);
+        }
+
+        verify(userDetailsService, times(REQUESTS)).loadUserByUsername("visitor");
+    }
+
+    @Test
+    void revokedTokensAreRejected() throws Exception {
+        JwtRequestFilter filter = new JwtRequestFilter(userDetailsService, jwtTokenProvider, tokenDenyList, true);
+        Claims claims = jwtTokenProvider.validateToken(accessToken);
+
+        tokenDenyList.deny(claims.getId(), claims.getExpiration());
+
+        assertNull(authenticate(filter, accessToken));
+    }
+
+    @Test
+    void refreshTokensDoNotAuthenticateRequests() throws Exception {
+        JwtRequestFilter filter = new JwtRequestFilter(userDetailsService, jwtTokenProvider, tokenDenyList, true);
+
+        assertNull(authenticate(filter, jwtTokenProvider.generateRefreshToken(user)));
+    }
+
+    private Authentication authenticate(JwtRequestFilter filter, String token) throws Exception {
+        SecurityContextHolder.clearContext();
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/pictures");
+        request.setCookies(new Cookie(TokenType.ACCESS.cookieName, token));
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        return SecurityContextHolder.getContext().getAuthentication();
+    }
+
+    private static Set<String> names(Authentication authentication) {
+        return authentication.getAuthorities().stream().map(GrantedAuthority::getAuthority).collect(Collectors.toSet());
+    }
+}
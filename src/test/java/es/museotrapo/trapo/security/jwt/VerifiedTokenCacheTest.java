@@ -0,0 +1,144 @@
+package es.museotrapo.trapo.security.jwt;
+
+import io.jsonwebtoken.Claims;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The same access token sent with every request must only be verified once until it expires or
+ * its user logs out.
+ */
+class VerifiedTokenCacheTest {
+
+    private static final Logger log = LoggerFactory.getLogger(VerifiedTokenCacheTest.class);
+
+    private static final int REQUESTS = 10_000;
+
+    @TempDir
+    static Path keys;
+
+    private final UserDetails user = new User("visitor", "encoded", AuthorityUtils.createAuthorityList("ROLE_USER"));
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void repeatedRequestsAreVerifiedOnce() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(new SimpleMeterRegistry(), 10_000);
+        JwtTokenProvider cached = new JwtTokenProvider(keyring(), cache);
+        JwtTokenProvider uncached = uncachedProvider();
+
+        long withCache = filterRequests(cached);
+        long withoutCache = filterRequests(uncached);
+        log.info("{} authenticated requests: {} ms with the token cache, {} ms without it",
+                REQUESTS, withCache / 1_000_000, withoutCache / 1_000_000);
+
+        // Only the first request is verified
+        assertEquals(REQUESTS - 1, cache.hitCount());
+    }
+
+    @Test
+    void entriesExpireWithTheirToken() throws IOException {
+        AtomicLong nanos = new AtomicLong();
+        VerifiedTokenCache cache = new VerifiedTokenCache(new SimpleMeterRegistry(), 10_000, nanos::get);
+        JwtTokenProvider jwtTokenProvider = uncachedProvider();
+        String token = jwtTokenProvider.generateAccessToken(user);
+        Claims claims = jwtTokenProvider.validateToken(token);
+        AtomicInteger verifications = new AtomicInteger();
+
+        cache.get(token, t -> count(verifications, claims));
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(4));
+        cache.get(token, t -> count(verifications, claims));
+        assertEquals(1, verifications.get());
+
+        // Past the expiration of the token it must be verified again, which then rejects it
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(1) + TimeUnit.SECONDS.toNanos(1));
+        cache.get(token, t -> count(verifications, claims));
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    void logoutForgetsTheTokens() throws IOException {
+        VerifiedTokenCache cache = new VerifiedTokenCache(new SimpleMeterRegistry(), 10_000);
+        JwtTokenProvider jwtTokenProvider = new JwtTokenProvider(keyring(), cache);
+        UserLogingService userLogingService = new UserLogingService(mock(AuthenticationManager.class),
+                mock(UserDetailsService.class), jwtTokenProvider, new TokenDenyList());
+        String token = jwtTokenProvider.generateAccessToken(user);
+        Claims claims = jwtTokenProvider.validateToken(token);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/auth/logout");
+        request.setCookies(new Cookie(TokenType.ACCESS.cookieName, token));
+        userLogingService.logout(request, new MockHttpServletResponse());
+
+        AtomicInteger verifications = new AtomicInteger();
+        cache.get(token, t -> count(verifications, claims));
+        assertEquals(1, verifications.get());
+    }
+
+    @Test
+    void invalidTokensAreNeverCached() throws IOException {
+        VerifiedTokenCache cache = new VerifiedTokenCache(new SimpleMeterRegistry(), 10_000);
+        JwtTokenProvider jwtTokenProvider = new JwtTokenProvider(keyring(), cache);
+        String forged = jwtTokenProvider.generateAccessToken(user) + "x";
+
+        assertThrows(RuntimeException.class, () -> jwtTokenProvider.validateToken(forged));
+        assertThrows(RuntimeException.class, () -> jwtTokenProvider.validateToken(forged));
+        assertEquals(0, cache.hitCount());
+    }
+
+    private long filterRequests(JwtTokenProvider jwtTokenProvider) throws Exception {
+        JwtRequestFilter filter = new JwtRequestFilter(mock(UserDetailsService.class), jwtTokenProvider,
+                new TokenDenyList(), true);
+        String token = jwtTokenProvider.generateAccessToken(user);
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            SecurityContextHolder.clearContext();
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/pictures");
+            request.setCookies(new Cookie(TokenType.ACCESS.cookieName, token));
+            filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+            assertNotNull(SecurityContextHolder.getContext().getAuthentication());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static FileKeyring keyring() throws IOException {
+        return new FileKeyring(keys.resolve("keyring").toString(), Duration.ofDays(7), 2);
+    }
+
+    private static JwtTokenProvider uncachedProvider() throws IOException {
+        return new JwtTokenProvider(keyring(), new VerifiedTokenCache(new SimpleMeterRegistry(), 0));
+    }
+
+    private static Claims count(AtomicInteger verifications, Claims claims) {
+        verifications.incrementAndGet();
+        return claims;
+    }
+}
@@ -0,0 +1,135 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.ArtistDeletionDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * An artist must be deleted a batch of pictures at a time, with its comments and likes, and a
+ * picture added while the deletion runs must not keep the artist row from being deleted.
+ */
+@DataJpaTest(properties = "trapo.artists.deletion.batch-size=" + ArtistDeletionServiceTest.BATCH_SIZE)
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // The deletion thread must see the seeded rows
+@Import(ArtistDeletionService.class)
+class ArtistDeletionServiceTest {
+
+    static final int BATCH_SIZE = 10;
+
+    private static final long ARTIST_ID = 900_000;
+    private static final int PICTURES = 25;
+    private static final int COMMENTS_PER_PICTURE = 3;
+    private static final int LIKES_PER_PICTURE = 2;
+
+    @Autowired
+    private ArtistDeletionService artistDeletionService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @MockitoBean
+    private ImageReferenceService imageReferenceService;
+
+    @MockitoBean
+    private HotImageCache hotImageCache;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("INSERT INTO artist (id, name, nickname, birth_date) VALUES (?, 'Prolific', 'prolific', '1900')",
+                ARTIST_ID);
+        jdbcTemplate.update("INSERT INTO picture (id, name, date, like_count, comment_count, artist_id) "
+                        + "SELECT ? + x, 'Work ' || x, '2025', ?, ?, ? FROM SYSTEM_RANGE(1, ?)",
+                ARTIST_ID, LIKES_PER_PICTURE, COMMENTS_PER_PICTURE, ARTIST_ID, PICTURES);
+        jdbcTemplate.update("INSERT INTO usertable (id, name) SELECT ? + x, 'fan' || x FROM SYSTEM_RANGE(1, ?)",
+                ARTIST_ID, LIKES_PER_PICTURE);
+        jdbcTemplate.update("INSERT INTO comment (id, message, author_id, picture_id) "
+                        + "SELECT p.id * 10 + u.x, 'Comment', ? + 1, p.id FROM picture p, SYSTEM_RANGE(1, ?) u "
+                        + "WHERE p.artist_id = ?",
+                ARTIST_ID, COMMENTS_PER_PICTURE, ARTIST_ID);
+        jdbcTemplate.update("INSERT INTO picture_like (picture_id, user_id) "
+                        + "SELECT p.id, ? + u.x FROM picture p, SYSTEM_RANGE(1, ?) u WHERE p.artist_id = ?",
+                ARTIST_ID, LIKES_PER_PICTURE, ARTIST_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM picture_like WHERE user_id > ?", ARTIST_ID);
+        jdbcTemplate.update("DELETE FROM comment WHERE author_id > ?", ARTIST_ID);
+        jdbcTemplate.update("DELETE FROM picture WHERE artist_id = ?", ARTIST_ID);
+        jdbcTemplate.update("DELETE FROM usertable WHERE id > ?", ARTIST_ID);
+        jdbcTemplate.update("DELETE FROM artist WHERE id = ?", ARTIST_ID);
+    }
+
+    @Test
+    void artistIsDeletedWithItsWholeCatalog() throws InterruptedException {
+        ArtistDeletionDTO started = artistDeletionService.startDeletion(ARTIST_ID);
+        assertEquals(PICTURES, started.totalPictures());
+
+        ArtistDeletionDTO done = awaitEnd();
+
+        assertEquals(ArtistDeletionService.DONE, done.status());
+        assertEquals(PICTURES, done.deletedPictures());
+        assertCatalogDeleted();
+        verify(imageReferenceService, times(PICTURES)).release(any());
+        verify(hotImageCache, times(PICTURES)).invalidateOnCommit(anyLong());
+    }
+
+    @Test
+    void picturesAddedDuringTheDeletionAreDeletedToo() throws InterruptedException {
+        // A picture is added, and committed, while the last batch is being deleted
+        AtomicInteger released = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (released.incrementAndGet() == PICTURES) {
+                jdbcTemplate.update("INSERT INTO picture (id, name, date, like_count, comment_count, artist_id) "
+                        + "VALUES (?, 'Late work', '2025', 0, 0, ?)", ARTIST_ID + PICTURES + 1, ARTIST_ID);
+            }
+            return null;
+        }).when(imageReferenceService).release(any());
+
+        artistDeletionService.startDeletion(ARTIST_ID);
+        ArtistDeletionDTO done = awaitEnd();
+
+        assertEquals(ArtistDeletionService.DONE, done.status());
+        assertEquals(PICTURES + 1, done.deletedPictures());
+        assertCatalogDeleted();
+    }
+
+    private void assertCatalogDeleted() {
+        assertEquals(0, count("SELECT COUNT(*) FROM artist WHERE id = ?"));
+        assertEquals(0, count("SELECT COUNT(*) FROM picture WHERE artist_id = ?"));
+        assertEquals(0, count("SELECT COUNT(*) FROM comment WHERE author_id > ?"));
+        assertEquals(0, count("SELECT COUNT(*) FROM picture_like WHERE user_id > ?"));
+    }
+
+    private ArtistDeletionDTO awaitEnd() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        ArtistDeletionDTO deletion;
+        while ((deletion = artistDeletionService.getDeletion(ARTIST_ID)).status().equals(ArtistDeletionService.RUNNING)) {
+            assertTrue(System.nanoTime() < deadline, "The deletion never ended");
+            Thread.sleep(10);
+        }
+        return deletion;
+    }
+
+    private long count(String sql) {
+        return jdbcTemplate.queryForObject(sql, Long.class, ARTIST_ID);
+    }
+}
@@ -0,0 +1,154 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.CommentDTO;
+import es.museotrapo.trapo.dto.CommentMapperImpl;
+import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.model.Comment;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.repository.PictureRepository;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Comments are owned by their picture_id column only: writing one must not touch any other table
+ * than comment, apart from the comment counter of the picture.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "es.museotrapo.trapo.service.CommentWriteStatementTest$RecordingInspector")
+@Import({PictureService.class, CommentService.class, CommentMapperImpl.class})
+class CommentWriteStatementTest extends PictureServiceSlice {
+
+    private static final int COMMENTS = 20;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureService pictureService;
+
+    private Picture picture;
+    private User author;
+
+    @BeforeEach
+    void setUp() {
+        picture = entityManager.persist(new Picture("Commented", "2025"));
+        author = entityManager.persist(new User("author", "author@example.com", "password", "USER"));
+        for (int i = 0; i < COMMENTS; i++) {
+            Comment comment = new Comment("Comment " + i);
+            comment.setAuthor(author);
+            comment.setPicture(picture);
+            entityManager.persist(comment);
+        }
+        entityManager.flush();
+        pictureRepository.repairCounters();
+        entityManager.clear();
+        when(userService.getLoggedUser()).thenAnswer(invocation -> entityManager.find(User.class, author.getId()));
+        RecordingInspector.STATEMENTS.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        RecordingInspector.STATEMENTS.clear();
+    }
+
+    @Test
+    void addCommentIsOneInsert() {
+        CommentDTO added = pictureService.addComment(new CommentDTO(null, "New comment", null), picture.getId());
+        entityManager.flush();
+
+        assertEquals(1, count("insert"));
+        assertEquals(List.of("comment"), tables("insert"));
+        assertEquals(List.of("picture"), tables("update")); // The comment counter
+        assertEquals(0, count("delete"));
+        assertNotNull(added.id());
+        assertEquals(COMMENTS + 1, commentCount());
+    }
+
+    @Test
+    void removeCommentIsOneDelete() {
+        Long commentId = firstCommentId();
+        RecordingInspector.STATEMENTS.clear();
+
+        pictureService.removeComment(commentId, picture.getId(), authentication());
+        entityManager.flush();
+
+        assertEquals(List.of("comment"), tables("delete"));
+        assertEquals(List.of("picture"), tables("update"));
+        assertEquals(0, count("insert"));
+        assertEquals(COMMENTS - 1, commentCount());
+    }
+
+    @Test
+    void deletePictureNeverTouchesAJoinTable() {
+        pictureService.deletePicture(new PictureDTO(picture.getId(), null, null, null, null, null, null, 0));
+        entityManager.flush();
+
+        assertEquals(0, count("insert"));
+        // Likes, comments and the picture, each with a single statement
+        assertEquals(List.of("picture_like", "comment", "picture"), tables("delete"));
+        assertTrue(RecordingInspector.STATEMENTS.stream().noneMatch(sql -> sql.contains("picture_comments")));
+        assertEquals(0L, entityManager.getEntityManager()
+                .createQuery("SELECT COUNT(c) FROM Comment c", Long.class).getSingleResult());
+    }
+
+    private Long firstCommentId() {
+        return entityManager.getEntityManager()
+                .createQuery("SELECT MIN(c.id) FROM Comment c", Long.class).getSingleResult();
+    }
+
+    private long commentCount() {
+        entityManager.clear();
+        return entityManager.find(Picture.class, picture.getId()).getCommentCount();
+    }
+
+    private Authentication authentication() {
+        return new UsernamePasswordAuthenticationToken("author", null, AuthorityUtils.createAuthorityList("ROLE_USER"));
+    }
+
+    private static long count(String verb) {
+        return RecordingInspector.STATEMENTS.stream().filter(sql -> sql.startsWith(verb)).count();
+    }
+
+    private static List<String> tables(String verb) {
+        return RecordingInspector.STATEMENTS.stream()
+                .filter(sql -> sql.startsWith(verb))
+                .map(sql -> sql.replaceFirst("^(insert into|update|delete from) (\\w+).*", "$2"))
+                .toList();
+    }
+
+    /**
+     * Records every SQL statement Hibernate prepares, lower-cased and on a single line.
+     */
+    public static class RecordingInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ROOT));
+            return sql;
+        }
+    }
+}
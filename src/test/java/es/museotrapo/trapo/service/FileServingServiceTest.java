@@ -0,0 +1,176 @@
+package es.museotrapo.trapo.service;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the copy used when sendfile is not available, as on the TLS connector, and measures it
+ * against the stream copy it replaced. Both run on this thread, so the bytes it allocates are
+ * those of the copy.
+ */
+class FileServingServiceTest {
+
+    private static final Logger log = LoggerFactory.getLogger(FileServingServiceTest.class);
+
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int ROUNDS = 20;
+
+    @TempDir
+    Path dir;
+
+    private final FileServingService fileServingService = new FileServingService(49152);
+
+    @Test
+    void filesAreCopiedInChunksWithoutSendfile() throws Exception {
+        Path file = randomFile();
+        serveWithTransferTo(file); // Loads the classes of the copy, which would be counted otherwise
+
+        long bytes = allocatedBytes();
+        assertEquals(FILE_SIZE, serveWithTransferTo(file));
+
+        // A copy in chunks: far less than the file is ever allocated per response
+        assertTrue(allocatedBytes() - bytes < FILE_SIZE / 64);
+    }
+
+    // Serves the file 2 x 20 times and compares wall-clock times, run with -Pbenchmarks
+    @Test
+    @Tag("benchmark")
+    void transferToIsComparedWithTheStreamCopy() throws Exception {
+        Path file = randomFile();
+
+        // Warm up both paths before measuring
+        serveWithTransferTo(file);
+        serveWithStreamCopy(file);
+
+        long transferToNanos = 0;
+        long transferToBytes = 0;
+        long streamNanos = 0;
+        long streamBytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            assertEquals(FILE_SIZE, serveWithTransferTo(file));
+            transferToNanos += System.nanoTime() - start;
+            transferToBytes += allocatedBytes() - bytes;
+
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            assertEquals(FILE_SIZE, serveWithStreamCopy(file));
+            streamNanos += System.nanoTime() - start;
+            streamBytes += allocatedBytes() - bytes;
+        }
+        log.info("Serving a {} MB file without sendfile, per response: transferTo {} ms and {} KB allocated, "
+                        + "stream copy {} ms and {} KB allocated",
+                FILE_SIZE / (1024 * 1024), transferToNanos / ROUNDS / 1_000_000, transferToBytes / ROUNDS / 1024,
+                streamNanos / ROUNDS / 1_000_000, streamBytes / ROUNDS / 1024);
+
+        // A copy in chunks: far less than the file is ever allocated per response
+        assertTrue(transferToBytes / ROUNDS < FILE_SIZE / 64);
+    }
+
+    @Test
+    void largeFilesAreLeftToSendfileWhenSupported() throws Exception {
+        Path file = dir.resolve("image.jpg");
+        Files.write(file, new byte[FILE_SIZE]);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/pictures/1/image");
+        request.setAttribute(FileServingService.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        fileServingService.serveFile(request, response, file, "image/jpeg", "\"etag\"", CacheControl.noCache());
+
+        assertEquals(file.toAbsolutePath().toString(), request.getAttribute(FileServingService.SENDFILE_FILENAME_ATTR));
+        assertEquals((long) FILE_SIZE, request.getAttribute(FileServingService.SENDFILE_END_ATTR));
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertNull(response.getHeader("Content-Range"));
+    }
+
+    private Path randomFile() throws Exception {
+        Path file = dir.resolve("image.jpg");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        Files.write(file, content);
+        return file;
+    }
+
+    private long serveWithTransferTo(Path file) throws Exception {
+        CountingResponse response = new CountingResponse();
+        fileServingService.serveFile(new MockHttpServletRequest("GET", "/pictures/1/image"), response, file,
+                "image/jpeg", "\"etag\"", CacheControl.noCache());
+        return response.out.count;
+    }
+
+    /**
+     * The copy done before, an InputStreamResource written by the message converter.
+     */
+    private static long serveWithStreamCopy(Path file) throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            in.transferTo(out);
+        }
+        return out.count;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * A response whose body is counted and dropped, as a socket would, instead of kept in memory.
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+
+        private final CountingOutputStream out = new CountingOutputStream();
+
+        CountingResponse() {
+            super(new MockHttpServletResponse());
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+    }
+
+    private static final class CountingOutputStream extends ServletOutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package es.museotrapo.trapo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Legacy images too large for the cache must not be read into memory at all, and an image read
+ * while its picture is being deleted must not stay cached once the delete commits.
+ */
+class HotImageCacheTest {
+
+    private static final long MAX_ENTRY_BYTES = 1024;
+
+    private final HotImageCache hotImageCache = new HotImageCache(new SimpleMeterRegistry(), 64 * 1024, MAX_ENTRY_BYTES);
+
+    @Test
+    void largeStreamsAreLeftUnread() throws IOException {
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("An oversized image was read");
+            }
+        };
+
+        long loadStamp = hotImageCache.beginLoad();
+        assertNull(hotImageCache.put(loadStamp, 1, 100L * 1024 * 1024, unreadable, MediaType.IMAGE_JPEG_VALUE));
+        assertNull(hotImageCache.get(1, 0));
+    }
+
+    @Test
+    void readDuringAnUncommittedDeleteIsDroppedOnCommit() throws IOException {
+        byte[] image = new byte[16];
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            // The deleting transaction drops the cached image but has not committed yet
+            hotImageCache.invalidateOnCommit(1);
+
+            // A reader still sees the picture and its file, and caches the image again
+            long loadStamp = hotImageCache.beginLoad();
+            hotImageCache.put(loadStamp, 1, image.length, new ByteArrayInputStream(image), MediaType.IMAGE_JPEG_VALUE);
+            assertNotNull(hotImageCache.get(1, 0));
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+            assertNull(hotImageCache.get(1, 0));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void smallStreamsAreCached() throws IOException {
+        byte[] image = new byte[(int) MAX_ENTRY_BYTES];
+
+        long loadStamp = hotImageCache.beginLoad();
+        HotImageCache.CachedImage cached = hotImageCache.put(loadStamp, 1, image.length,
+                new ByteArrayInputStream(image), MediaType.IMAGE_JPEG_VALUE);
+
+        assertNotNull(cached);
+        assertEquals(image.length, cached.content().remaining());
+        assertSame(cached, hotImageCache.get(1, 0));
+    }
+}
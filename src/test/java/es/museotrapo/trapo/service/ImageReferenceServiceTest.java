@@ -0,0 +1,77 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.ImageObject;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Both deduplication gauges must come from a single read of the image totals, and scrapes must
+ * not query the database again until those totals are old.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import({ImageReferenceService.class, ImageReferenceServiceTest.Metrics.class})
+class ImageReferenceServiceTest {
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @MockitoBean
+    private ImageStore imageStore;
+
+    @Test
+    void gaugesAreReadFromTheLastTotals() {
+        referenced(new ImageObject("a".repeat(64), 100), 3);
+        referenced(new ImageObject("b".repeat(64), 50), 1);
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        statistics.clear();
+        // 350 bytes referenced by pictures, 150 stored
+        assertEquals(200.0, meterRegistry.get("trapo.images.dedup.saved").gauge().value());
+        assertEquals(350.0 / 150, meterRegistry.get("trapo.images.dedup.ratio").gauge().value(), 1e-9);
+        assertEquals(1, statistics.getPrepareStatementCount(), "statements for both gauges");
+
+        // Until the totals are older than the maximum age, scrapes do not query the database
+        statistics.clear();
+        meterRegistry.get("trapo.images.dedup.saved").gauge().value();
+        meterRegistry.get("trapo.images.dedup.ratio").gauge().value();
+        assertEquals(0, statistics.getPrepareStatementCount(), "statements for a second scrape");
+    }
+
+    private void referenced(ImageObject image, int references) {
+        entityManager.persist(image);
+        entityManager.flush();
+        entityManager.getEntityManager()
+                .createQuery("UPDATE ImageObject o SET o.referenceCount = :references WHERE o.hash = :hash")
+                .setParameter("references", (long) references)
+                .setParameter("hash", image.getHash())
+                .executeUpdate();
+    }
+
+    @TestConfiguration
+    static class Metrics {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
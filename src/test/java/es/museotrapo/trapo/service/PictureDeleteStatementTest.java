@@ -0,0 +1,96 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.CommentMapper;
+import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.repository.BulkSeeder;
+import es.museotrapo.trapo.repository.PictureRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Deleting a picture must cost the same number of statements whatever the number of comments and likes it has.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import({PictureService.class, CommentService.class})
+class PictureDeleteStatementTest extends PictureServiceSlice {
+
+    private static final int COMMENTS = 20_000;
+    private static final int LIKES = 5_000;
+    // Picture lookup, then the DELETE of its likes, of its comments and of the picture itself
+    private static final long DELETE_STATEMENTS = 4;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private PictureService pictureService;
+
+    @MockitoBean
+    private CommentMapper commentMapper;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    void deleteCostDoesNotDependOnComments() {
+        Picture quiet = seed("Quiet", 1, 1);
+        Picture viral = seed("Viral", COMMENTS, LIKES);
+
+        long quietStatements = delete(quiet);
+        long viralStatements = delete(viral);
+
+        assertEquals(DELETE_STATEMENTS, quietStatements);
+        assertEquals(DELETE_STATEMENTS, viralStatements);
+        assertEquals(0L, count("SELECT COUNT(c) FROM Comment c"));
+        assertEquals(0L, count("SELECT COUNT(l) FROM PictureLike l"));
+        assertNull(entityManager.find(Picture.class, viral.getId()));
+    }
+
+    private Picture seed(String name, int comments, int likes) {
+        Picture picture = entityManager.persist(new Picture(name, "2025"));
+        User author = entityManager.persist(new User(name + "-author", name + "@example.com", "password", "USER"));
+        entityManager.flush();
+
+        long offset = picture.getId() * 1_000_000;
+        new BulkSeeder(entityManager, pictureRepository)
+                .comments(picture.getId(), author.getId(), offset, comments)
+                .users(offset, name + "-fan", likes)
+                .likes(picture.getId(), offset, likes)
+                .done();
+        return picture;
+    }
+
+    private long delete(Picture picture) {
+        statistics.clear();
+        pictureService.deletePicture(new PictureDTO(picture.getId(), null, null, null, null, null, null, 0));
+        entityManager.flush();
+        return statistics.getPrepareStatementCount();
+    }
+
+    private long count(String jpql) {
+        return entityManager.getEntityManager().createQuery(jpql, Long.class).getSingleResult();
+    }
+}
@@ -0,0 +1,124 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.dto.UserMapper;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Two likes of the same user sent at once, e.g. a double click, must both succeed and leave the
+ * picture liked and counted once.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "es.museotrapo.trapo.service.PictureLikeRaceTest$InsertBarrier")
+@Transactional(propagation = Propagation.NOT_SUPPORTED) // Each toggle must commit on its own
+@Import(UserService.class)
+class PictureLikeRaceTest {
+
+    private static final long PICTURE_ID = 800_000;
+    private static final long USER_ID = 800_000;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @MockitoBean
+    private UserMapper userMapper;
+
+    @MockitoBean
+    private PasswordEncoder passwordEncoder;
+
+    @MockitoBean
+    private CommentService commentService;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("INSERT INTO picture (id, name, date, like_count, comment_count) VALUES (?, 'Popular', '2025', 0, 0)",
+                PICTURE_ID);
+        jdbcTemplate.update("INSERT INTO usertable (id, name) VALUES (?, 'clicker')", USER_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        InsertBarrier.barrier = null;
+        jdbcTemplate.update("DELETE FROM picture_like WHERE picture_id = ?", PICTURE_ID);
+        jdbcTemplate.update("DELETE FROM picture WHERE id = ?", PICTURE_ID);
+        jdbcTemplate.update("DELETE FROM usertable WHERE id = ?", USER_ID);
+    }
+
+    @Test
+    void concurrentLikesOfTheSameUserAreCountedOnce() throws Exception {
+        // Both toggles find no like to delete before either inserts one
+        InsertBarrier.barrier = new CyclicBarrier(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(this::like);
+            Future<?> second = executor.submit(this::like);
+            first.get(30, TimeUnit.SECONDS);
+            second.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1L, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM picture_like WHERE picture_id = ?",
+                Long.class, PICTURE_ID));
+        assertEquals(1L, jdbcTemplate.queryForObject("SELECT like_count FROM picture WHERE id = ?",
+                Long.class, PICTURE_ID));
+    }
+
+    private void like() {
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                "clicker", null, AuthorityUtils.createAuthorityList("ROLE_USER")));
+        try {
+            userService.likeOrRemovePicture(new PictureDTO(PICTURE_ID, null, null, null, null, null, null, 0));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    /**
+     * Holds every INSERT of a like until as many toggles as the barrier expects are about to insert.
+     */
+    public static class InsertBarrier implements StatementInspector {
+
+        static volatile CyclicBarrier barrier;
+
+        @Override
+        public String inspect(String sql) {
+            CyclicBarrier current = barrier;
+            if (current != null && sql.toLowerCase(Locale.ROOT).startsWith("insert into picture_like")) {
+                try {
+                    current.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException("The other toggle never reached its insert", e);
+                }
+            }
+            return sql;
+        }
+    }
+}
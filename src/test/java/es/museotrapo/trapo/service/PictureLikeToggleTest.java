@@ -0,0 +1,126 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.PictureDTO;
+import es.museotrapo.trapo.dto.UserMapper;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.repository.BulkSeeder;
+import es.museotrapo.trapo.repository.PictureRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Liking and unliking a picture must cost the same whatever the number of likes it already has.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import(UserService.class)
+class PictureLikeToggleTest {
+
+    private static final int EXISTING_LIKES = 10_000;
+    // Picture existence check, logged user and its roles, DELETE of the like (plus its INSERT when
+    // there was none to delete) and the counter UPDATE. None of them depends on the existing likes
+    private static final long LIKE_STATEMENTS = 6;
+    private static final long UNLIKE_STATEMENTS = 5;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @MockitoBean
+    private UserMapper userMapper;
+
+    @MockitoBean
+    private PasswordEncoder passwordEncoder;
+
+    @MockitoBean
+    private CommentService commentService;
+
+    private Picture picture;
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        picture = entityManager.persist(new Picture("Popular", "2025"));
+        entityManager.persist(new User("liker", "liker@example.com", "password", "USER"));
+        entityManager.flush();
+
+        // Ten thousand other users already like the picture
+        new BulkSeeder(entityManager, pictureRepository)
+                .users(1_000_000, "fan", EXISTING_LIKES)
+                .likes(picture.getId(), 1_000_000, EXISTING_LIKES)
+                .done();
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(
+                "liker", null, AuthorityUtils.createAuthorityList("ROLE_USER")));
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void likeIsOneInsert() {
+        statistics.clear();
+        userService.likeOrRemovePicture(pictureDTO());
+
+        assertEquals(LIKE_STATEMENTS, statistics.getPrepareStatementCount());
+        assertEquals(0, likeCollectionLoads());
+        assertEquals(EXISTING_LIKES + 1, likeCount());
+        assertTrue(userService.isPictureLiked(pictureDTO()));
+    }
+
+    @Test
+    void unlikeIsOneDelete() {
+        userService.likeOrRemovePicture(pictureDTO());
+        entityManager.clear();
+
+        statistics.clear();
+        userService.likeOrRemovePicture(pictureDTO());
+
+        assertEquals(UNLIKE_STATEMENTS, statistics.getPrepareStatementCount());
+        assertEquals(0, likeCollectionLoads());
+        assertEquals(EXISTING_LIKES, likeCount());
+        assertFalse(userService.isPictureLiked(pictureDTO()));
+    }
+
+    private PictureDTO pictureDTO() {
+        return new PictureDTO(picture.getId(), null, null, null, null, null, null, 0);
+    }
+
+    private long likeCollectionLoads() {
+        return statistics.getCollectionStatistics(Picture.class.getName() + ".likes").getLoadCount()
+                + statistics.getCollectionStatistics(User.class.getName() + ".likes").getLoadCount();
+    }
+
+    private long likeCount() {
+        entityManager.clear();
+        return entityManager.find(Picture.class, picture.getId()).getLikeCount();
+    }
+}
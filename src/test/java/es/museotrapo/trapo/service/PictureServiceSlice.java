@@ -0,0 +1,42 @@
+package es.museotrapo.trapo.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.museotrapo.trapo.dto.PictureMapper;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+/**
+ * Base of the JPA tests of {@link PictureService}: mocks every collaborator that does not touch
+ * the database, so only the picture, comment and like repositories run for real.
+ */
+abstract class PictureServiceSlice {
+
+    @MockitoBean
+    protected UserService userService;
+
+    @MockitoBean
+    protected ArtistService artistService;
+
+    @MockitoBean
+    protected PictureMapper pictureMapper;
+
+    @MockitoBean
+    protected ObjectMapper objectMapper;
+
+    @MockitoBean
+    protected ImageStore imageStore;
+
+    @MockitoBean
+    protected ImageReferenceService imageReferenceService;
+
+    @MockitoBean
+    protected FileServingService fileServingService;
+
+    @MockitoBean
+    protected ThumbnailService thumbnailService;
+
+    @MockitoBean
+    protected HotImageCache hotImageCache;
+
+    @MockitoBean
+    protected TileService tileService;
+}
@@ -0,0 +1,96 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.StoredImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Requests for a width an image does not exceed must be served the original at once, since no
+ * derivative is ever built for them, and images that cannot be decoded must not be queued again.
+ */
+class ThumbnailServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private ImageStore imageStore;
+    private SimpleMeterRegistry meterRegistry;
+    private ThumbnailService thumbnailService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        imageStore = new ImageStore(dir.toString());
+        meterRegistry = new SimpleMeterRegistry();
+        thumbnailService = new ThumbnailService(imageStore, meterRegistry, List.of(160, 480, 1280), 1, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        thumbnailService.shutdown();
+    }
+
+    @Test
+    void derivativesAreOnlyServedWhenNarrowerThanTheOriginal() throws IOException {
+        StoredImage image = store(jpeg(600));
+
+        assertEquals(160, thumbnailService.derivativeWidth(image, 100));
+        assertEquals(480, thumbnailService.derivativeWidth(image, 480));
+        // The 1280 bucket is wider than the image: the original is the best there is
+        assertNull(thumbnailService.derivativeWidth(image, 800));
+        assertNull(thumbnailService.derivativeWidth(image, 2000));
+    }
+
+    @Test
+    void undecodableImagesAreNotQueuedAgain() throws Exception {
+        StoredImage image = store(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 0, 1, 2, 3});
+        StoredImage broken = new StoredImage(image.hash(), image.size(), MediaType.IMAGE_JPEG_VALUE);
+
+        thumbnailService.requestDerivatives(broken);
+        awaitFailure();
+        thumbnailService.requestDerivatives(broken);
+
+        assertEquals(1, thumbnailService.submittedTasks());
+        assertNull(thumbnailService.derivativeWidth(broken, 100));
+        assertTrue(Files.notExists(thumbnailService.derivativePath(broken, 160)));
+    }
+
+    private StoredImage store(byte[] content) throws IOException {
+        StagedImage staged = imageStore.stage(new ByteArrayInputStream(content));
+        imageStore.lockFor(staged.hash()).lock();
+        try {
+            return imageStore.commit(staged);
+        } finally {
+            imageStore.lockFor(staged.hash()).unlock();
+        }
+    }
+
+    private byte[] jpeg(int width) throws IOException {
+        Path file = dir.resolve("source.jpg");
+        ThumbnailService.encode(new BufferedImage(width, width / 2, BufferedImage.TYPE_INT_RGB), "jpg", file);
+        return Files.readAllBytes(file);
+    }
+
+    private void awaitFailure() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (meterRegistry.counter("trapo.images.derivatives.failures").count() == 0) {
+            assertTrue(System.nanoTime() < deadline, "The image never failed to decode");
+            Thread.sleep(5);
+        }
+    }
+}
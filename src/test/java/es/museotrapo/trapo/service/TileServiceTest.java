@@ -0,0 +1,126 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.model.StoredImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The top level must be decoded in as few bands as the budget allows, without losing or shifting
+ * a row at the band edges, and images above the size limit must not be tiled.
+ */
+class TileServiceTest {
+
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 700;
+
+    @TempDir
+    Path dir;
+
+    private ImageStore imageStore;
+    private TileService tileService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        imageStore = new ImageStore(dir.toString());
+        // Two rows of tiles per band: the three rows of the image take two bands
+        tileService = new TileService(imageStore, new SimpleMeterRegistry(), 512,
+                2L * WIDTH * TileService.TILE_SIZE, (long) WIDTH * HEIGHT, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tileService.shutdown();
+    }
+
+    @Test
+    void bandsAreAsTallAsTheBudgetAllows() {
+        assertEquals(64, TileService.bandRows(1024, 16L * 1024 * 1024));
+        assertEquals(1, TileService.bandRows(100_000, 16L * 1024 * 1024));
+    }
+
+    @Test
+    void tilesMatchTheOriginalAcrossBands() throws Exception {
+        BufferedImage source = gradient(WIDTH, HEIGHT);
+        StoredImage image = store(source);
+
+        tileService.requestTiles(image);
+        awaitManifest(image);
+
+        int level = TileService.maxLevel(WIDTH, HEIGHT);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                BufferedImage tile = ImageIO.read(tileService.tilePath(image, level, x, y).toFile());
+                int tileWidth = Math.min(TileService.TILE_SIZE, WIDTH - x * TileService.TILE_SIZE);
+                int tileHeight = Math.min(TileService.TILE_SIZE, HEIGHT - y * TileService.TILE_SIZE);
+                assertEquals(tileWidth, tile.getWidth());
+                assertEquals(tileHeight, tile.getHeight());
+                // First and last row of every tile, where a band edge would show
+                for (int row : new int[]{0, tileHeight - 1}) {
+                    assertEquals(source.getRGB(x * TileService.TILE_SIZE, y * TileService.TILE_SIZE + row),
+                            tile.getRGB(0, row), "tile " + x + "_" + y + " row " + row);
+                }
+            }
+        }
+    }
+
+    @Test
+    void imagesAboveTheLimitAreNotTiled() throws Exception {
+        StoredImage image = store(gradient(WIDTH, HEIGHT + 1));
+
+        tileService.requestTiles(image);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!tileService.isUntiled(image)) {
+            assertTrue(System.nanoTime() < deadline, "The image was never checked");
+            Thread.sleep(5);
+        }
+        assertFalse(Files.exists(tileService.manifestPath(image)));
+    }
+
+    private StoredImage store(BufferedImage source) throws IOException {
+        Path file = dir.resolve("source.png");
+        ImageIO.write(source, "png", file.toFile());
+        StagedImage staged = imageStore.stage(new ByteArrayInputStream(Files.readAllBytes(file)));
+        imageStore.lockFor(staged.hash()).lock();
+        try {
+            return imageStore.commit(staged);
+        } finally {
+            imageStore.lockFor(staged.hash()).unlock();
+        }
+    }
+
+    private void awaitManifest(StoredImage image) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!Files.exists(tileService.manifestPath(image))) {
+            assertTrue(System.nanoTime() < deadline, "The pyramid was never built");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * An opaque image whose every row and column has its own color.
+     */
+    private static BufferedImage gradient(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xFF000000 | (y % 256) << 16 | (x % 256) << 8 | (y / 256) << 4 | (x / 256));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,173 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.UploadSessionDTO;
+import es.museotrapo.trapo.exceptions.UploadOffsetMismatchException;
+import es.museotrapo.trapo.model.StoredImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Chunks must be written in order, only an image matching its checksum may reach the store,
+ * and nobody may hold open more sessions than the caps allow.
+ */
+@SpringBootTest(classes = {UploadService.class, ImageStore.class})
+class UploadServiceTest {
+
+    private static final long PICTURE_ID = 1L;
+    private static final URI LOCATION = URI.create("/api/pictures/1/image");
+
+    @TempDir
+    static Path images;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("trapo.images.dir", () -> images.toString());
+        registry.add("trapo.uploads.max-sessions", () -> 3);
+        registry.add("trapo.uploads.max-sessions-per-owner", () -> 2);
+    }
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private ImageStore imageStore;
+
+    @MockitoBean
+    private ImageReferenceService imageReferenceService;
+
+    @MockitoBean
+    private PictureService pictureService;
+
+    private final byte[] image = "not really an image, but enough bytes to upload".getBytes();
+
+    @Test
+    void chunksMustStartAtTheCurrentOffset() throws IOException {
+        UploadSessionDTO upload = uploadService.createSession(PICTURE_ID, (long) image.length, "uploader");
+        writeChunk(upload, 0, 9);
+
+        // A resent or skipped chunk tells the client where to resume
+        UploadOffsetMismatchException resent = assertThrows(UploadOffsetMismatchException.class,
+                () -> writeChunk(upload, 5, 14));
+        assertEquals(10, resent.getOffset());
+        UploadOffsetMismatchException skipped = assertThrows(UploadOffsetMismatchException.class,
+                () -> writeChunk(upload, 20, 29));
+        assertEquals(10, skipped.getOffset());
+
+        // Completing before every byte arrived is refused the same way
+        UploadOffsetMismatchException early = assertThrows(UploadOffsetMismatchException.class,
+                () -> uploadService.completeSession(PICTURE_ID, upload.id(), "uploader", sha256(image), LOCATION));
+        assertEquals(10, early.getOffset());
+
+        writeChunk(upload, 10, image.length - 1);
+        assertEquals(image.length, uploadService.getSession(PICTURE_ID, upload.id(), "uploader").offset());
+        uploadService.cancelSession(PICTURE_ID, upload.id(), "uploader");
+    }
+
+    @Test
+    void checksumMismatchDiscardsTheUpload() throws IOException {
+        UploadSessionDTO upload = uploadService.createSession(PICTURE_ID, (long) image.length, "uploader");
+        writeChunk(upload, 0, image.length - 1);
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                () -> uploadService.completeSession(PICTURE_ID, upload.id(), "uploader", sha256("other".getBytes()),
+                        LOCATION));
+
+        assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        assertThrows(NoSuchElementException.class, () -> uploadService.getSession(PICTURE_ID, upload.id(), "uploader"));
+        verify(imageReferenceService, never()).acquire(any());
+        verify(pictureService, never()).attachPictureImageREST(any(), any(), any());
+        assertTrue(scratchFiles().isEmpty());
+    }
+
+    @Test
+    void matchingChecksumAttachesTheImage() throws IOException {
+        String hash = sha256(image);
+        StoredImage storedImage = new StoredImage(hash, image.length, "image/jpeg");
+        when(imageReferenceService.acquire(any())).thenReturn(storedImage);
+        UploadSessionDTO upload = uploadService.createSession(PICTURE_ID, (long) image.length, "uploader");
+        writeChunk(upload, 0, image.length - 1);
+
+        uploadService.completeSession(PICTURE_ID, upload.id(), "uploader", hash.toUpperCase(), LOCATION);
+
+        verify(imageReferenceService).acquire(argThat(staged -> staged.hash().equals(hash)
+                && staged.size() == image.length));
+        verify(pictureService).attachPictureImageREST(eq(PICTURE_ID), eq(LOCATION), eq(storedImage));
+        assertThrows(NoSuchElementException.class, () -> uploadService.getSession(PICTURE_ID, upload.id(), "uploader"));
+    }
+
+    @Test
+    void openSessionsAreCappedPerOwnerAndInTotal() throws IOException {
+        UploadSessionDTO first = uploadService.createSession(PICTURE_ID, null, "alice");
+        UploadSessionDTO second = uploadService.createSession(PICTURE_ID, null, "alice");
+        try {
+            assertTooManyRequests("alice");
+
+            UploadSessionDTO third = uploadService.createSession(PICTURE_ID, null, "bob");
+            assertTooManyRequests("carol");
+
+            // Finishing a session frees its place
+            uploadService.cancelSession(PICTURE_ID, third.id(), "bob");
+            uploadService.cancelSession(PICTURE_ID, uploadService.createSession(PICTURE_ID, null, "carol").id(), "carol");
+        } finally {
+            uploadService.cancelSession(PICTURE_ID, first.id(), "alice");
+            uploadService.cancelSession(PICTURE_ID, second.id(), "alice");
+        }
+    }
+
+    private void assertTooManyRequests(String owner) {
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                () -> uploadService.createSession(PICTURE_ID, null, owner));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatusCode());
+    }
+
+    private void writeChunk(UploadSessionDTO upload, int start, int end) throws IOException {
+        int to = Math.min(end + 1, image.length);
+        byte[] chunk = start < image.length ? Arrays.copyOfRange(image, start, to) : new byte[0];
+        uploadService.writeChunk(PICTURE_ID, upload.id(), "uploader", "bytes " + start + "-" + end + "/" + image.length,
+                new ByteArrayInputStream(chunk));
+    }
+
+    private List<Path> scratchFiles() throws IOException {
+        try (Stream<Path> files = Files.list(imageStore.tmpDir())) {
+            return files.filter(file -> file.getFileName().toString().startsWith("chunked-")).toList();
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package es.museotrapo.trapo.service;
+
+import es.museotrapo.trapo.dto.CommentMapper;
+import es.museotrapo.trapo.dto.UserMapper;
+import es.museotrapo.trapo.model.Picture;
+import es.museotrapo.trapo.model.User;
+import es.museotrapo.trapo.repository.BulkSeeder;
+import es.museotrapo.trapo.repository.PictureRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Removing a user must cost the same number of statements whatever the number of likes and comments it has,
+ * and leave the counters of the pictures it liked or commented right.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import({UserService.class, CommentService.class})
+class UserRemovalTest {
+
+    private static final int PICTURES = 50;
+    private static final int COMMENTS_PER_PICTURE = 40;
+    // Existence check, the two counter UPDATEs and the DELETEs of likes, comments, roles and the user
+    private static final long REMOVE_STATEMENTS = 7;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PictureRepository pictureRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @MockitoBean
+    private UserMapper userMapper;
+
+    @MockitoBean
+    private CommentMapper commentMapper;
+
+    @MockitoBean
+    private PasswordEncoder passwordEncoder;
+
+    private final List<Picture> pictures = new ArrayList<>();
+    private User quiet;
+    private User busy;
+    private User other;
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        quiet = entityManager.persist(new User("quiet", "quiet@example.com", "password", "USER"));
+        busy = entityManager.persist(new User("busy", "busy@example.com", "password", "USER", "ADMIN"));
+        other = entityManager.persist(new User("other", "other@example.com", "password", "USER"));
+        for (int i = 0; i < PICTURES; i++) {
+            pictures.add(entityManager.persist(new Picture("Picture " + i, "2025")));
+        }
+        entityManager.flush();
+
+        // The busy user likes and comments every picture, the other user likes and comments once each
+        BulkSeeder seeder = new BulkSeeder(entityManager, pictureRepository);
+        for (Picture picture : pictures) {
+            like(picture, busy);
+            like(picture, other);
+            seeder.comments(picture.getId(), busy.getId(), picture.getId() * 1_000, COMMENTS_PER_PICTURE)
+                    .comments(picture.getId(), other.getId(), picture.getId() * 1_000 + 998, 1);
+        }
+        like(pictures.get(0), quiet);
+        seeder.done();
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    void removeCostDoesNotDependOnActivity() {
+        assertEquals(REMOVE_STATEMENTS, remove(quiet));
+        assertEquals(REMOVE_STATEMENTS, remove(busy));
+
+        for (Picture picture : pictures) {
+            Picture reloaded = entityManager.find(Picture.class, picture.getId());
+            assertEquals(1, reloaded.getLikeCount());
+            assertEquals(1, reloaded.getCommentCount());
+        }
+        assertEquals(PICTURES, count("SELECT COUNT(c) FROM Comment c"));
+        assertEquals(PICTURES, count("SELECT COUNT(l) FROM PictureLike l"));
+        assertEquals(0L, ((Number) entityManager.getEntityManager()
+                .createNativeQuery("SELECT COUNT(*) FROM user_roles WHERE user_id = :id")
+                .setParameter("id", busy.getId()).getSingleResult()).longValue());
+        assertNull(entityManager.find(User.class, busy.getId()));
+    }
+
+    private void like(Picture picture, User user) {
+        entityManager.getEntityManager()
+                .createNativeQuery("INSERT INTO picture_like (picture_id, user_id) VALUES (:picture, :user)")
+                .setParameter("picture", picture.getId())
+                .setParameter("user", user.getId())
+                .executeUpdate();
+    }
+
+    private long remove(User user) {
+        statistics.clear();
+        userService.remove(user.getId());
+        entityManager.flush();
+        entityManager.clear();
+        return statistics.getPrepareStatementCount();
+    }
+
+    private long count(String jpql) {
+        return entityManager.getEntityManager().createQuery(jpql, Long.class).getSingleResult();
+    }
+}